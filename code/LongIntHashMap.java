@@ -0,0 +1,172 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    LongIntHashMap.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive long keys to primitive int values, with open
+ * addressing and linear probing. It is used to number the joint
+ * configurations of the MSU attributes that actually appear in a node, without
+ * boxing and without allocating a table as large as the product of their
+ * cardinalities.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class LongIntHashMap implements Serializable {
+
+    /**
+     * for serialization
+     */
+    private static final long serialVersionUID = -6530285794640357042L;
+
+    /**
+     * Value returned for keys that are not in the map
+     */
+    public static final int NO_ENTRY = -1;
+
+    private long[] m_Keys;
+
+    private int[] m_Values;
+
+    private boolean[] m_Used;
+
+    private int m_Size;
+
+    /**
+     * Creates a map that holds the expected number of entries without
+     * growing.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the size
+     */
+    public int size() {
+        return m_Size;
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key
+     * @return the value, or NO_ENTRY if the key is not in the map
+     */
+    public int get(long key) {
+        int slot = slot(key);
+
+        return m_Used[slot] ? m_Values[slot] : NO_ENTRY;
+    }
+
+    /**
+     * Adds a key with the given value, unless the key is already in the map.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the current value of the key, or NO_ENTRY if it was added
+     */
+    public int putIfAbsent(long key, int value) {
+        int slot = slot(key);
+        if (m_Used[slot]) {
+            return m_Values[slot];
+        }
+
+        m_Used[slot] = true;
+        m_Keys[slot] = key;
+        m_Values[slot] = value;
+        if (++m_Size > m_Keys.length >> 1) {
+            rehash(m_Keys.length << 1);
+        }
+
+        return NO_ENTRY;
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public void clear() {
+        Arrays.fill(m_Used, false);
+        m_Size = 0;
+    }
+
+    /**
+     * Returns the slot of a key: the one holding it or the free one where it
+     * would go.
+     */
+    private int slot(long key) {
+        int mask = m_Keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (m_Used[slot] && m_Keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = m_Keys;
+        int[] values = m_Values;
+        boolean[] used = m_Used;
+
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = slot(keys[i]);
+                m_Used[slot] = true;
+                m_Keys[slot] = keys[i];
+                m_Values[slot] = values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        m_Keys = new long[capacity];
+        m_Values = new int[capacity];
+        m_Used = new boolean[capacity];
+    }
+
+    /**
+     * Mixes the bits of a key (MurmurHash3 finalizer), so that consecutive
+     * keys do not fall into consecutive slots.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+
+        return (int) key;
+    }
+}
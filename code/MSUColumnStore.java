@@ -0,0 +1,456 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    MSUColumnStore.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Column-major copy of a training set used to grow a RandomTreeMSU. It keeps
+ * the raw values of every attribute, the class labels and, optionally, the
+ * discretized codes of the Multivariate Symmetrical Uncertainty (MSU) columns.
+ * Tree nodes are slices of an array of row indices that is partitioned in
+ * place, so no copy of the data is made while the tree grows.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class MSUColumnStore implements Serializable {
+
+    /**
+     * for serialization
+     */
+    private static final long serialVersionUID = 4286340573213876361L;
+
+    /**
+     * The header of the instances
+     */
+    private final Instances m_Info;
+
+    /**
+     * Raw values, one array per attribute (null for the class attribute)
+     */
+    private final double[][] m_Values;
+
+    /**
+     * Weka attribute of each MSU column
+     */
+    private final int[] m_Attributes;
+
+    /**
+     * MSU column of each Weka attribute (-1 for the class attribute)
+     */
+    private final int[] m_Columns;
+
+    /**
+     * Discretized codes, one array per MSU column (null if not discretized)
+     */
+    private final int[][] m_Codes;
+
+    /**
+     * Cut points of each numeric MSU column (null if not discretized)
+     */
+    private final double[][] m_CutPoints;
+
+    /**
+     * Number of distinct codes of each MSU column
+     */
+    private final int[] m_Cardinalities;
+
+    /**
+     * Names of the MSU columns
+     */
+    private final String[] m_Header;
+
+    /**
+     * Class labels of the instances
+     */
+    private final int[] m_Labels;
+
+    MSUColumnStore(Instances instances, double[][] values, int[] attributes, int[][] codes,
+            double[][] cutPoints, int[] cardinalities, String[] header, int[] labels) {
+        m_Info = new Instances(instances, 0);
+        m_Values = values;
+        m_Attributes = attributes;
+        m_Columns = new int[values.length];
+        Arrays.fill(m_Columns, -1);
+        for (int column = 0; column < attributes.length; column++) {
+            m_Columns[attributes[column]] = column;
+        }
+        m_Codes = codes;
+        m_CutPoints = cutPoints;
+        m_Cardinalities = cardinalities;
+        m_Header = header;
+        m_Labels = labels;
+    }
+
+    /**
+     * Discretizes the given instances and stores the result by columns.
+     *
+     * @param instances the instances to discretize
+     * @return the column store
+     */
+    public static MSUColumnStore newInstance(Instances instances) {
+        return newInstance(instances, true);
+    }
+
+    /**
+     * Stores the given instances by columns.
+     *
+     * @param instances the instances to store
+     * @param discretize whether the MSU columns are discretized now, or left
+     * to be discretized by each node
+     * @return the column store
+     */
+    public static MSUColumnStore newInstance(Instances instances, boolean discretize) {
+        return RandomTreeMSU.ClassificationDatasetAdapter.newColumnStore(instances, discretize);
+    }
+
+    /**
+     * Returns the header of the stored instances.
+     *
+     * @return the header, without instances
+     */
+    public Instances getInfo() {
+        return m_Info;
+    }
+
+    /**
+     * Returns the number of rows (instances) in the store.
+     *
+     * @return the number of rows
+     */
+    public int numRows() {
+        return m_Labels.length;
+    }
+
+    /**
+     * Returns the number of MSU columns in the store.
+     *
+     * @return the number of columns
+     */
+    public int numColumns() {
+        return m_Header.length;
+    }
+
+    /**
+     * Returns the names of the MSU columns.
+     *
+     * @return the header
+     */
+    public String[] getHeader() {
+        return m_Header;
+    }
+
+    /**
+     * Returns the MSU column of every Weka attribute, -1 for the class
+     * attribute.
+     *
+     * @return the columns, indexed by attribute
+     */
+    public int[] getColumns() {
+        return m_Columns;
+    }
+
+    /**
+     * Returns the number of distinct codes of every MSU column.
+     *
+     * @return the cardinalities, only valid if the store is discretized
+     */
+    public int[] getCardinalities() {
+        return m_Cardinalities;
+    }
+
+    /**
+     * Returns the cut points of an MSU column.
+     *
+     * @param column the MSU column
+     * @return the cut points, null for nominal columns; only valid if the
+     * store is discretized
+     */
+    public double[] getCutPoints(int column) {
+        return m_CutPoints[column];
+    }
+
+    /**
+     * Returns whether the MSU columns were discretized when the store was
+     * built.
+     *
+     * @return true if the codes are available
+     */
+    public boolean isDiscretized() {
+        return m_Codes != null;
+    }
+
+    /**
+     * Returns the raw values of an attribute, indexed by row.
+     *
+     * @param attIndex the Weka attribute index
+     * @return the values
+     */
+    public double[] values(int attIndex) {
+        return m_Values[attIndex];
+    }
+
+    /**
+     * Returns the class labels, indexed by row.
+     *
+     * @return the labels
+     */
+    public int[] labels() {
+        return m_Labels;
+    }
+
+    /**
+     * Returns the codes of a column, indexed by row.
+     *
+     * @param column the MSU column
+     * @return the codes; only valid if the store is discretized
+     */
+    public int[] codes(int column) {
+        return m_Codes[column];
+    }
+
+    /**
+     * Returns the codes of a column restricted to a slice of rows.
+     *
+     * @param column the MSU column
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @return the codes, in the same order as the rows
+     */
+    public int[] column(int column, int[] rows, int begin, int end) {
+        int[] codes = m_Codes[column];
+        int[] result = new int[end - begin];
+
+        for (int i = begin; i < end; i++) {
+            result[i - begin] = codes[rows[i]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Computes the cut points of a column using only a slice of rows, as done
+     * when the data of a node is discretized on its own.
+     *
+     * @param column the MSU column
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @param labels the labels of the slice
+     * @return the cut points, null for nominal columns
+     */
+    public double[] cutPoints(int column, int[] rows, int begin, int end, int[] labels) {
+        int attIndex = m_Attributes[column];
+
+        if (m_Info.attribute(attIndex).isNominal()) {
+            return null;
+        }
+
+        return RandomTreeMSU.ClassificationDatasetAdapter.cutPoints(slice(attIndex, rows, begin, end), labels);
+    }
+
+    /**
+     * Discretizes a slice of rows of a column with the given cut points.
+     * Nominal columns keep their values.
+     *
+     * @param column the MSU column
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @param cutPoints the cut points of the column, null for nominal columns
+     * @param codes the array where the codes are written
+     * @return the number of distinct codes of the column
+     */
+    public int discretize(int column, int[] rows, int begin, int end, double[] cutPoints, int[] codes) {
+        int attIndex = m_Attributes[column];
+
+        if (m_Info.attribute(attIndex).isNominal()) {
+            double[] values = m_Values[attIndex];
+            for (int i = begin; i < end; i++) {
+                codes[i - begin] = (int) values[rows[i]];
+            }
+            return m_Info.attribute(attIndex).numValues();
+        }
+
+        RandomTreeMSU.ClassificationDatasetAdapter.discretize(slice(attIndex, rows, begin, end), cutPoints, codes);
+
+        return cutPoints.length + 1;
+    }
+
+    private double[] slice(int attIndex, int[] rows, int begin, int end) {
+        double[] values = m_Values[attIndex];
+        double[] result = new double[end - begin];
+
+        for (int i = begin; i < end; i++) {
+            result[i - begin] = values[rows[i]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the class labels restricted to a slice of rows.
+     *
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @return the labels, in the same order as the rows
+     */
+    public int[] labels(int[] rows, int begin, int end) {
+        int[] result = new int[end - begin];
+
+        for (int i = begin; i < end; i++) {
+            result[i - begin] = m_Labels[rows[i]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Draws a sample of a slice of rows without replacement, stratified by
+     * class: every class keeps its share of the slice, and at least one row.
+     *
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @param sampleSize the approximate size of the sample
+     * @param random the random number generator
+     * @return the sampled rows, in increasing order
+     */
+    public int[] stratifiedSample(int[] rows, int begin, int end, int sampleSize, Random random) {
+        int numClasses = m_Info.numClasses();
+        int[] classCounts = new int[numClasses];
+        for (int i = begin; i < end; i++) {
+            classCounts[m_Labels[rows[i]]]++;
+        }
+
+        // Rows grouped by class
+        int[] classStarts = new int[numClasses + 1];
+        for (int c = 0; c < numClasses; c++) {
+            classStarts[c + 1] = classStarts[c] + classCounts[c];
+        }
+        int[] next = Arrays.copyOf(classStarts, numClasses);
+        int[] grouped = new int[end - begin];
+        for (int i = begin; i < end; i++) {
+            grouped[next[m_Labels[rows[i]]]++] = rows[i];
+        }
+
+        int[] quotas = new int[numClasses];
+        int size = 0;
+        for (int c = 0; c < numClasses; c++) {
+            if (classCounts[c] > 0) {
+                quotas[c] = (int) Math.round((double) sampleSize * classCounts[c] / (end - begin));
+                quotas[c] = Math.min(classCounts[c], Math.max(1, quotas[c]));
+                size += quotas[c];
+            }
+        }
+
+        // Partial Fisher-Yates shuffle within every class
+        int[] sample = new int[size];
+        size = 0;
+        for (int c = 0; c < numClasses; c++) {
+            for (int i = 0; i < quotas[c]; i++) {
+                int j = classStarts[c] + i + random.nextInt(classCounts[c] - i);
+                int row = grouped[j];
+                grouped[j] = grouped[classStarts[c] + i];
+                grouped[classStarts[c] + i] = row;
+                sample[size++] = row;
+            }
+        }
+        Arrays.sort(sample);
+
+        return sample;
+    }
+
+    /**
+     * Partitions a slice of rows in place, as quicksort does, so that the rows
+     * of each branch of a split end up together. Missing values are not
+     * supported by RandomTreeMSU; if any, they follow the heaviest branch.
+     *
+     * @param rows the row indices
+     * @param begin the first position of the slice
+     * @param end the position after the last one of the slice
+     * @param attIndex the split attribute
+     * @param splitPoint the split point (numeric attributes only)
+     * @param props the proportions of each branch
+     * @return the start of each branch followed by the end of the slice
+     */
+    public int[] partition(int[] rows, int begin, int end, int attIndex, double splitPoint, double[] props) {
+        double[] values = m_Values[attIndex];
+        int missingBranch = Utils.maxIndex(props);
+        int[] bounds = new int[props.length + 1];
+
+        if (m_Info.attribute(attIndex).isNominal()) {
+            // Count the rows of each branch, then swap every row into its branch
+            int[] next = new int[props.length];
+            for (int i = begin; i < end; i++) {
+                next[branch(values[rows[i]], missingBranch)]++;
+            }
+            bounds[0] = begin;
+            for (int k = 0; k < props.length; k++) {
+                bounds[k + 1] = bounds[k] + next[k];
+                next[k] = bounds[k];
+            }
+            for (int k = 0; k < props.length; k++) {
+                while (next[k] < bounds[k + 1]) {
+                    int row = rows[next[k]];
+                    int target = branch(values[row], missingBranch);
+                    if (target == k) {
+                        next[k]++;
+                    } else {
+                        rows[next[k]] = rows[next[target]];
+                        rows[next[target]++] = row;
+                    }
+                }
+            }
+        } else {
+            int left = begin;
+            int right = end - 1;
+            while (left <= right) {
+                double value = values[rows[left]];
+                boolean goesLeft = Utils.isMissingValue(value) ? missingBranch == 0 : value < splitPoint;
+                if (goesLeft) {
+                    left++;
+                } else {
+                    int row = rows[left];
+                    rows[left] = rows[right];
+                    rows[right--] = row;
+                }
+            }
+            bounds[0] = begin;
+            bounds[1] = left;
+            bounds[2] = end;
+        }
+
+        return bounds;
+    }
+
+    private static int branch(double value, int missingBranch) {
+        return Utils.isMissingValue(value) ? missingBranch : (int) value;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    MSUEvaluator.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import java.util.Arrays;
+
+/**
+ * Computes the Multivariate Symmetrical Uncertainty (MSU) of the attributes
+ * selected at the ancestors of a node plus one candidate attribute, with the
+ * same formula as MultivariateStatUtils.symmetricalUncertainty. The joint
+ * configuration of the ancestors is encoded once per node as a dense id per
+ * row, so scoring candidates only takes one pass over the rows, whatever the
+ * depth of the node and however many candidates are scored.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class MSUEvaluator {
+
+    /**
+     * Natural logarithm of 2, to express the entropies in bits
+     */
+    private static final double LN2 = Math.log(2);
+
+    /**
+     * Counts below this value are taken as zero
+     */
+    private static final double PRECISION = 1e-6;
+
+    /**
+     * Class labels of the rows
+     */
+    private final int[] m_Labels;
+
+    /**
+     * Weights of the rows, null if every row counts once
+     */
+    private final double[] m_Weights;
+
+    /**
+     * Number of class labels
+     */
+    private final int m_NumLabels;
+
+    /**
+     * Number of ancestor attributes
+     */
+    private final int m_NumAncestors;
+
+    /**
+     * Entropy of the class
+     */
+    private final double m_LabelEntropy;
+
+    /**
+     * Entropy of the class plus the entropies of the ancestor attributes
+     */
+    private final double m_SumEntropies;
+
+    /**
+     * Histograms of the class and of every ancestor attribute
+     */
+    private final double[][] m_Histograms;
+
+    /**
+     * Joint configuration id of the ancestor attributes of each row
+     */
+    private final int[] m_AncestorIds;
+
+    /**
+     * Number of distinct ancestor configurations
+     */
+    private final int m_NumAncestorIds;
+
+    /**
+     * Prepares the evaluation of candidates for a node.
+     *
+     * @param ancestorCodes the codes of the ancestor attributes, in the order
+     * they were selected, one array per attribute
+     * @param labels the class labels of the rows
+     * @param numLabels the number of class labels
+     */
+    public MSUEvaluator(int[][] ancestorCodes, int[] labels, int numLabels) {
+        this(ancestorCodes, labels, null, numLabels);
+    }
+
+    /**
+     * Prepares the evaluation of candidates for a node whose rows are
+     * weighted. All the counts accumulate the weights of the rows, so a row
+     * with weight w counts as w copies of it.
+     *
+     * @param ancestorCodes the codes of the ancestor attributes, in the order
+     * they were selected, one array per attribute
+     * @param labels the class labels of the rows
+     * @param weights the weights of the rows, or null if every row counts once
+     * @param numLabels the number of class labels
+     */
+    public MSUEvaluator(int[][] ancestorCodes, int[] labels, double[] weights, int numLabels) {
+        m_Labels = labels;
+        m_Weights = weights;
+        m_NumLabels = numLabels;
+        m_NumAncestors = ancestorCodes.length;
+
+        m_Histograms = new double[m_NumAncestors + 1][];
+        m_Histograms[0] = histogram(labels, numLabels, weights);
+        for (int i = 0; i < m_NumAncestors; i++) {
+            m_Histograms[i + 1] = histogram(ancestorCodes[i], max(ancestorCodes[i]) + 1, weights);
+        }
+        m_LabelEntropy = entropy(m_Histograms[0]);
+        m_SumEntropies = sumEntropies(m_Histograms);
+
+        int[] ids = new int[labels.length];
+        int numIds = 1;
+        for (int[] codes : ancestorCodes) {
+            numIds = combine(ids, numIds, codes, max(codes) + 1, ids);
+        }
+        m_AncestorIds = ids;
+        m_NumAncestorIds = numIds;
+    }
+
+    /**
+     * Prepares the evaluation of candidates for a node from the state of its
+     * parent, when the ancestors of the node are those of its parent plus the
+     * attribute the parent was split on. The configuration ids only take one
+     * pass over the rows, whatever the number of ancestors, and are the same
+     * as if they were computed from all the ancestor codes.
+     *
+     * @param parentIds the configuration id of each row at the parent
+     * @param numParentIds the number of configuration ids at the parent
+     * @param codes the codes of the attribute the parent was split on
+     * @param labels the class labels of the rows
+     * @param weights the weights of the rows, or null if every row counts once
+     * @param histograms the histograms of the class and of every ancestor
+     * attribute, over the rows of the node
+     * @param numLabels the number of class labels
+     */
+    public MSUEvaluator(int[] parentIds, int numParentIds, int[] codes, int[] labels, double[] weights,
+            double[][] histograms, int numLabels) {
+        m_Labels = labels;
+        m_Weights = weights;
+        m_NumLabels = numLabels;
+        m_NumAncestors = histograms.length - 1;
+
+        m_Histograms = histograms;
+        m_LabelEntropy = entropy(histograms[0]);
+        m_SumEntropies = sumEntropies(histograms);
+
+        m_AncestorIds = new int[labels.length];
+        m_NumAncestorIds = combine(parentIds, numParentIds, codes, max(codes) + 1, m_AncestorIds);
+    }
+
+    /**
+     * Returns the histograms of the class and of every ancestor attribute,
+     * in the order the ancestors were selected.
+     *
+     * @return the histograms, the one of the class first
+     */
+    public double[][] getHistograms() {
+        return m_Histograms;
+    }
+
+    /**
+     * Returns the joint configuration id of the ancestor attributes of each
+     * row.
+     *
+     * @return the ids
+     */
+    public int[] getAncestorIds() {
+        return m_AncestorIds;
+    }
+
+    /**
+     * Returns the number of distinct ancestor configurations.
+     *
+     * @return the number of ids
+     */
+    public int getNumAncestorIds() {
+        return m_NumAncestorIds;
+    }
+
+    /**
+     * Computes the MSU of the ancestor attributes plus a candidate attribute.
+     *
+     * @param codes the codes of the candidate attribute
+     * @param cardinality the number of distinct codes of the candidate
+     * @return the MSU
+     */
+    public double symmetricalUncertainty(int[] codes, int cardinality) {
+        return symmetricalUncertainty(new int[][]{codes}, new int[]{cardinality})[0];
+    }
+
+    /**
+     * Computes the MSU of the ancestor attributes plus each one of several
+     * candidate attributes. The joint counts of all the candidates are
+     * gathered in a single pass over the rows.
+     *
+     * @param codes the codes of every candidate attribute
+     * @param cardinalities the number of distinct codes of every candidate
+     * @return the MSU of every candidate
+     */
+    public double[] symmetricalUncertainty(int[][] codes, int[] cardinalities) {
+        return symmetricalUncertainty(codes, cardinalities, null);
+    }
+
+    /**
+     * Computes the MSU of the ancestor attributes plus each one of several
+     * candidate attributes, and keeps the histogram of every candidate.
+     *
+     * @param codes the codes of every candidate attribute
+     * @param cardinalities the number of distinct codes of every candidate
+     * @param candidateHistograms the array where the histogram of every
+     * candidate is written, or null
+     * @return the MSU of every candidate
+     */
+    public double[] symmetricalUncertainty(int[][] codes, int[] cardinalities, double[][] candidateHistograms) {
+        return symmetricalUncertainty(codes, null, 0, cardinalities, candidateHistograms);
+    }
+
+    /**
+     * Computes the MSU of the ancestor attributes plus each one of several
+     * candidate attributes, reading their codes from whole columns through
+     * the row indices of the evaluator, so that they are not copied first.
+     * The joint counts of all the candidates are gathered in a single pass
+     * over the rows.
+     *
+     * @param columns the codes of every candidate attribute, for all the rows
+     * @param rows the row indices, or null if the codes are those of the rows
+     * of the evaluator, in order
+     * @param begin the position of the first row of the evaluator in the row
+     * indices
+     * @param cardinalities the number of distinct codes of every candidate
+     * @param candidateHistograms the array where the histogram of every
+     * candidate is written, or null
+     * @return the MSU of every candidate
+     */
+    public double[] symmetricalUncertainty(int[][] columns, int[] rows, int begin, int[] cardinalities,
+            double[][] candidateHistograms) {
+        Counts counts = new Counts(cardinalities);
+        int numRows = m_Labels.length;
+
+        for (int i = 0; i < numRows; i++) {
+            int row = rows == null ? i : rows[begin + i];
+            for (int j = 0; j < columns.length; j++) {
+                counts.add(i, j, columns[j][row]);
+            }
+        }
+
+        return counts.symmetricalUncertainty(candidateHistograms);
+    }
+
+    /**
+     * The histograms and joint counts of several candidate attributes,
+     * gathered one row at a time.
+     */
+    private class Counts {
+
+        private final int[] m_Cardinalities;
+        private final double[][] m_CandidateHistograms;
+
+        // Joint counts are indexed by configuration id and class label. At
+        // the root the configuration is the code itself; otherwise the pairs
+        // of ancestor configuration and code are numbered as they appear
+        private final double[][] m_Counts;
+        private final int[] m_NumIds;
+        private final int[][] m_DenseIds;
+        private final LongIntHashMap[] m_SparseIds;
+
+        private Counts(int[] cardinalities) {
+            int numCandidates = cardinalities.length;
+            int numRows = m_Labels.length;
+
+            m_Cardinalities = cardinalities;
+            m_CandidateHistograms = new double[numCandidates][];
+            m_Counts = new double[numCandidates][];
+            m_NumIds = new int[numCandidates];
+            m_DenseIds = new int[numCandidates][];
+            m_SparseIds = new LongIntHashMap[numCandidates];
+            for (int j = 0; j < numCandidates; j++) {
+                m_CandidateHistograms[j] = new double[cardinalities[j]];
+                if (m_NumAncestors == 0) {
+                    m_Counts[j] = new double[cardinalities[j] * m_NumLabels];
+                } else if ((long) m_NumAncestorIds * cardinalities[j] <= numRows) {
+                    m_DenseIds[j] = new int[m_NumAncestorIds * cardinalities[j]];
+                    Arrays.fill(m_DenseIds[j], -1);
+                    m_Counts[j] = new double[m_DenseIds[j].length * m_NumLabels];
+                } else {
+                    m_SparseIds[j] = new LongIntHashMap(numRows);
+                    m_Counts[j] = new double[Math.min(numRows, 16) * m_NumLabels];
+                }
+            }
+        }
+
+        /**
+         * Counts a row for a candidate.
+         *
+         * @param i the index of the row among the rows of the evaluator
+         * @param j the index of the candidate
+         * @param code the code of the candidate at the row
+         */
+        private void add(int i, int j, int code) {
+            int label = m_Labels[i];
+            double weight = m_Weights == null ? 1 : m_Weights[i];
+            m_CandidateHistograms[j][code] += weight;
+
+            int id;
+            if (m_NumAncestors == 0) {
+                id = code;
+            } else if (m_DenseIds[j] != null) {
+                int pair = m_AncestorIds[i] * m_Cardinalities[j] + code;
+                id = m_DenseIds[j][pair];
+                if (id < 0) {
+                    id = m_NumIds[j]++;
+                    m_DenseIds[j][pair] = id;
+                }
+            } else {
+                id = m_SparseIds[j].putIfAbsent((long) m_AncestorIds[i] * m_Cardinalities[j] + code, m_NumIds[j]);
+                if (id == LongIntHashMap.NO_ENTRY) {
+                    id = m_NumIds[j]++;
+                    if (m_NumIds[j] * m_NumLabels > m_Counts[j].length) {
+                        m_Counts[j] = Arrays.copyOf(m_Counts[j], 2 * m_Counts[j].length);
+                    }
+                }
+            }
+            m_Counts[j][id * m_NumLabels + label] += weight;
+        }
+
+        /**
+         * Computes the MSU of the ancestor attributes plus each one of the
+         * candidates, from the rows counted so far.
+         *
+         * @param candidateHistograms the array where the histogram of every
+         * candidate is written, or null
+         * @return the MSU of every candidate
+         */
+        private double[] symmetricalUncertainty(double[][] candidateHistograms) {
+            int numCandidates = m_Cardinalities.length;
+            double[] result = new double[numCandidates];
+            double n = m_NumAncestors + 2;
+            for (int j = 0; j < numCandidates; j++) {
+                double sumEntropies = m_SumEntropies + entropy(m_CandidateHistograms[j]);
+
+                double jointEntropy;
+                if (m_NumAncestors == 0) {
+                    // Same order as the library: class labels by rows, codes by columns
+                    jointEntropy = conditionalEntropy(m_Counts[j], m_NumLabels, m_Cardinalities[j], 1, m_NumLabels)
+                            + m_LabelEntropy;
+                } else {
+                    double[] idHistogram = new double[m_NumIds[j]];
+                    for (int id = 0; id < m_NumIds[j]; id++) {
+                        for (int c = 0; c < m_NumLabels; c++) {
+                            idHistogram[id] += m_Counts[j][id * m_NumLabels + c];
+                        }
+                    }
+                    jointEntropy = conditionalEntropy(m_Counts[j], m_NumIds[j], m_NumLabels, m_NumLabels, 1)
+                            + entropy(idHistogram);
+                }
+
+                result[j] = sumEntropies == 0 ? 0 : n / (n - 1) * ((sumEntropies - jointEntropy) / sumEntropies);
+            }
+
+            if (candidateHistograms != null) {
+                System.arraycopy(m_CandidateHistograms, 0, candidateHistograms, 0, numCandidates);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Gives a dense id to every distinct pair of configuration id and code,
+     * numbered in order of first appearance. Only the pairs that appear are
+     * counted: when there are more possible pairs than rows, they are numbered
+     * through a hash map instead of a table of all of them.
+     *
+     * @param ids the configuration id of each row
+     * @param numIds the number of configuration ids
+     * @param codes the code of each row
+     * @param cardinality the number of distinct codes
+     * @param result the array where the new ids are written, may be ids
+     * @return the number of new ids
+     */
+    private static int combine(int[] ids, int numIds, int[] codes, int cardinality, int[] result) {
+        int numNewIds = 0;
+
+        if ((long) numIds * cardinality <= codes.length) {
+            int[] newIds = new int[numIds * cardinality];
+            Arrays.fill(newIds, -1);
+            for (int i = 0; i < codes.length; i++) {
+                int pair = ids[i] * cardinality + codes[i];
+                if (newIds[pair] < 0) {
+                    newIds[pair] = numNewIds++;
+                }
+                result[i] = newIds[pair];
+            }
+        } else {
+            LongIntHashMap newIds = new LongIntHashMap(codes.length);
+            for (int i = 0; i < codes.length; i++) {
+                long pair = (long) ids[i] * cardinality + codes[i];
+                int newId = newIds.putIfAbsent(pair, numNewIds);
+                if (newId == LongIntHashMap.NO_ENTRY) {
+                    newId = numNewIds++;
+                }
+                result[i] = newId;
+            }
+        }
+
+        return numNewIds;
+    }
+
+    /**
+     * Entropy of the class plus the entropies of the ancestor attributes, in
+     * the same order as the library.
+     */
+    private static double sumEntropies(double[][] histograms) {
+        double result = 0;
+
+        for (double[] histogram : histograms) {
+            result += entropy(histogram);
+        }
+
+        return result;
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+
+        for (int value : values) {
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        return max;
+    }
+
+    private static double[] histogram(int[] values, int numValues, double[] weights) {
+        double[] histogram = new double[numValues];
+
+        for (int i = 0; i < values.length; i++) {
+            histogram[values[i]] += weights == null ? 1 : weights[i];
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Entropy, in bits, of a histogram.
+     */
+    private static double entropy(double[] histogram) {
+        double result = 0;
+        double total = 0;
+
+        for (double count : histogram) {
+            result -= xlogx(count);
+            total += count;
+        }
+
+        if (eq(total, 0)) {
+            return 0;
+        }
+
+        return (result + xlogx(total)) / (total * LN2);
+    }
+
+    /**
+     * Entropy, in bits, of the columns of a contingency table conditioned on
+     * its rows. The table is stored in a flat array, with the given distance
+     * between consecutive rows and between consecutive columns.
+     */
+    private static double conditionalEntropy(double[] table, int numRows, int numColumns,
+            int rowStride, int columnStride) {
+        double result = 0;
+        double total = 0;
+
+        for (int r = 0; r < numRows; r++) {
+            double rowTotal = 0;
+            for (int c = 0; c < numColumns; c++) {
+                double count = table[r * rowStride + c * columnStride];
+                result += xlogx(count);
+                rowTotal += count;
+            }
+            result += -xlogx(rowTotal);
+            total += rowTotal;
+        }
+
+        if (eq(total, 0)) {
+            return 0;
+        }
+
+        return -result / (total * LN2);
+    }
+
+    private static double xlogx(double x) {
+        return x >= PRECISION ? x * Math.log(x) : 0;
+    }
+
+    private static boolean eq(double a, double b) {
+        return a - b < PRECISION && b - a < PRECISION;
+    }
+}
@@ -22,15 +22,38 @@
 
 package weka.classifiers.trees;
 
+import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
 import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.Randomizable;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
+import weka.core.Utils;
 import weka.gui.ProgrammaticProperty;
 
 import weka.classifiers.trees.RandomForest;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * <!-- globalinfo-start --> Class for constructing a forest of random trees. 
  * It uses a Multivariate Symmetrical Uncertainty (MSU) meassure, instead of information gain.<br>
@@ -94,6 +117,60 @@ import weka.classifiers.trees.RandomForest;
  * </pre>
  * 
  * <pre>
+ * -shared-discretization
+ *  Discretize the training set once and share the codes among all the trees.
+ * </pre>
+ * 
+ * <pre>
+ * -fork-join
+ *  Build the trees as tasks of a fork-join pool, shared with the
+ *  node and subtree tasks of the trees.
+ * </pre>
+ * 
+ * <pre>
+ * -shared-pool
+ *  Build the trees as tasks of a fork-join pool shared by all the
+ *  forests of the JVM, which build at most as many trees at the same
+ *  time as it has threads (implies -fork-join).
+ * </pre>
+ * 
+ * <pre>
+ * -shared-pool-size &lt;num&gt;
+ *  Number of threads of the shared pool, and of trees of all the
+ *  forests built in it at the same time (0 = one per processor).
+ *  Only the first forest that uses the pool sets it.
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
+ * -index-bagging
+ *  Give every tree the number of copies of each instance in its bag
+ *  instead of a copy of the bag. The trees are built in a fork-join
+ *  pool with -num-slots threads.
+ * </pre>
+ * 
+ * <pre>
+ * -oob-window &lt;num&gt;
+ *  Number of trees over which the out-of-bag error must be stable
+ *  to stop adding trees before -I (0 = always build -I trees).
+ *  The trees are built in a fork-join pool with -num-slots threads.
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
+ * -oob-tolerance &lt;num&gt;
+ *  Largest change of the out-of-bag error within the window for
+ *  the forest to stop growing.
+ *  (default 0.001)
+ * </pre>
+ * 
+ * <pre>
+ * -warm-start
+ *  Keep the training set and its shared discretization after
+ *  building, so that trees can be added with addTrees().
+ * </pre>
+ * 
+ * <pre>
  * -I &lt;num&gt;
  *  Number of iterations (i.e., the number of trees in the random forest).
  *  (current value 100)
@@ -152,6 +229,62 @@ import weka.classifiers.trees.RandomForest;
  * </pre>
  * 
  * <pre>
+ * -discretize-once
+ *  Discretize the training data once at the root and let the nodes
+ *  reuse its codes, instead of discretizing every node.
+ * </pre>
+ * 
+ * <pre>
+ * -weighted-msu
+ *  Accumulate the weights of the instances in the MSU counts,
+ *  instead of counting every instance once.
+ * </pre>
+ * 
+ * <pre>
+ * -msu-max-order &lt;num&gt;
+ *  Maximum number of ancestor attributes the MSU conditions on,
+ *  keeping the most recent ones (0 = all).
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
+ * -msu-sample-size &lt;num&gt;
+ *  Number of instances above which the MSU of a node is estimated
+ *  on a sample of that size, stratified by class (0 = exact).
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
+ * -split-on-bins
+ *  Split numeric attributes on the best one of the cut points
+ *  of their MSU discretization, instead of searching all the
+ *  thresholds between their values. Needs -discretize-once.
+ * </pre>
+ * 
+ * <pre>
+ * -level-wise
+ *  Grow the tree breadth first, one level at a time, instead of
+ *  depth first: the first candidates of all the nodes of a level
+ *  are scored before any of them is split, in a single pass over
+ *  the instances if -discretize-once is set.
+ * </pre>
+ * 
+ * <pre>
+ * -node-parallel-threshold &lt;num&gt;
+ *  Minimum number of instances of a node to evaluate its
+ *  candidate attributes in parallel (0 = never).
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
+ * -subtree-parallel-threshold &lt;num&gt;
+ *  Minimum number of instances of a subtree to build it as a
+ *  separate task, with its own random number generator
+ *  (0 = subtrees are built sequentially).
+ *  (default 0)
+ * </pre>
+ * 
+ * <pre>
  * -output-debug-info
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console
@@ -182,6 +315,86 @@ public class RandomForestMSU extends RandomForest {
 
   /** for serialization */
   static final long serialVersionUID = 1116839470761428688L;
+
+  /** Whether the training set is discretized once for all the trees */
+  protected boolean m_SharedDiscretization = false;
+
+  /** The discretized training set shared by the trees while building */
+  protected transient MSUColumnStore m_SharedStore = null;
+
+  /** Whether the trees are built as tasks of a fork-join pool */
+  protected boolean m_ForkJoin = false;
+
+  /** Whether the fork-join pool is the one shared by all the forests */
+  protected boolean m_SharedPool = false;
+
+  /** The number of threads of the shared pool, 0 for one per processor */
+  protected int m_SharedPoolSize = 0;
+
+  /** Whether the bags are given to the trees as counts of the instances */
+  protected boolean m_IndexBagging = false;
+
+  /**
+   * The number of trees over which the out-of-bag error must be stable for
+   * the forest to stop growing, 0 to always build all the trees
+   */
+  protected int m_OobWindow = 0;
+
+  /** The largest change of the out-of-bag error within the window */
+  protected double m_OobTolerance = 0.001;
+
+  /** Whether the training set is kept to add trees after building */
+  protected boolean m_WarmStart = false;
+
+  /** The training set kept to add trees, with its shared discretization */
+  protected transient Instances m_TrainingData = null;
+
+  /**
+   * The fork-join pool shared by all the forests, created when it is first
+   * used, with as many permits to build trees as it has threads. Its size is
+   * the one asked for by the first forest that uses it, and it is never
+   * replaced, so the JVM holds a single pool. A forest
+   * takes a permit before submitting every tree and the tree gives it back
+   * when it is done, so the trees of all the forests built at the same time
+   * are started in turn instead of one forest after another, and the pool
+   * never holds more trees than it can build. Its threads are daemons, so
+   * the pool never keeps the JVM alive.
+   */
+  private static final class SharedPool {
+
+    /** The pool, null until a forest uses it */
+    private static SharedPool s_Current = null;
+
+    private final ForkJoinPool m_Pool;
+    private final Semaphore m_Permits;
+
+    private SharedPool(int size) {
+      m_Pool = new ForkJoinPool(size, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+          ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          thread.setName("RandomForestMSU-" + thread.getName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      }, null, false);
+      m_Permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Returns the shared pool, creating it with the given number of threads
+     * if no forest has used it yet.
+     * 
+     * @param size the number of threads, 0 for one per processor
+     * @return the pool
+     */
+    private static synchronized SharedPool get(int size) {
+      if (s_Current == null) {
+        s_Current = new SharedPool(size > 0 ? size : Runtime.getRuntime().availableProcessors());
+      }
+      return s_Current;
+    }
+  }
   
   /**
    * Constructor that sets base classifier for bagging to RandomTre and default
@@ -239,6 +452,1063 @@ public class RandomForestMSU extends RandomForest {
     return result;
   }
   
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String sharedDiscretizationTipText() {
+    return "If true, the training set is discretized once and all the trees read "
+      + "the codes of their bags from it.";
+  }
+
+  /**
+   * Get whether the training set is discretized once for all the trees.
+   * 
+   * @return true if the discretization is shared
+   */
+  public boolean getSharedDiscretization() {
+    return m_SharedDiscretization;
+  }
+
+  /**
+   * Set whether the training set is discretized once for all the trees.
+   * 
+   * @param sharedDiscretization true if the discretization is to be shared
+   */
+  public void setSharedDiscretization(boolean sharedDiscretization) {
+    m_SharedDiscretization = sharedDiscretization;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String forkJoinTipText() {
+    return "If true, the trees are built as tasks of a fork-join pool with as many threads "
+      + "as execution slots, or one per processor if there is a single slot. The node and subtree tasks of the trees (see their parallel "
+      + "thresholds) run in the same pool, so idle threads help with the trees that are "
+      + "still being built.";
+  }
+
+  /**
+   * Get whether the trees are built as tasks of a fork-join pool.
+   * 
+   * @return true if the trees are built in a fork-join pool
+   */
+  public boolean getForkJoin() {
+    return m_ForkJoin;
+  }
+
+  /**
+   * Set whether the trees are built as tasks of a fork-join pool.
+   * 
+   * @param forkJoin true if the trees are to be built in a fork-join pool
+   */
+  public void setForkJoin(boolean forkJoin) {
+    m_ForkJoin = forkJoin;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String sharedPoolTipText() {
+    return "If true, the trees are built as tasks of a fork-join pool shared by all the "
+      + "forests of the JVM, so that many forests built at the same time share the "
+      + "processors instead of each starting its own threads. The pool builds at most as "
+      + "many trees at the same time as it has threads, taking them from every forest in turn.";
+  }
+
+  /**
+   * Get whether the trees are built in the fork-join pool shared by all the
+   * forests.
+   * 
+   * @return true if the pool is shared
+   */
+  public boolean getSharedPool() {
+    return m_SharedPool;
+  }
+
+  /**
+   * Set whether the trees are built in the fork-join pool shared by all the
+   * forests.
+   * 
+   * @param sharedPool true if the pool is to be shared
+   */
+  public void setSharedPool(boolean sharedPool) {
+    m_SharedPool = sharedPool;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String sharedPoolSizeTipText() {
+    return "The number of threads of the pool shared by all the forests, which is also the "
+      + "number of trees of all of them built at the same time. The pool is created by the "
+      + "first forest that uses it, with the size that forest asks for, and keeps it for the "
+      + "life of the JVM: the size asked for by later forests is ignored. 0 gives one thread "
+      + "per processor.";
+  }
+
+  /**
+   * Get the number of threads of the pool shared by all the forests.
+   * 
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getSharedPoolSize() {
+    return m_SharedPoolSize;
+  }
+
+  /**
+   * Set the number of threads of the pool shared by all the forests.
+   * 
+   * @param sharedPoolSize the number of threads, 0 for one per processor
+   */
+  public void setSharedPoolSize(int sharedPoolSize) {
+    m_SharedPoolSize = sharedPoolSize;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String indexBaggingTipText() {
+    return "If true, every tree is given the number of copies of each training instance in "
+      + "its bag, and builds on the rows of a column store shared by all the trees, instead "
+      + "of a copy of the bag. Only used when the bags are represented using weights and the "
+      + "trees do not backfit. The trees are built as tasks of a fork-join pool with as many "
+      + "threads as execution slots, one per processor with -fork-join.";
+  }
+
+  /**
+   * Get whether the bags are given to the trees as counts of the instances.
+   * 
+   * @return true if the bags are not materialized
+   */
+  public boolean getIndexBagging() {
+    return m_IndexBagging;
+  }
+
+  /**
+   * Set whether the bags are given to the trees as counts of the instances.
+   * 
+   * @param indexBagging true if the bags are not to be materialized
+   */
+  public void setIndexBagging(boolean indexBagging) {
+    m_IndexBagging = indexBagging;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String oobWindowTipText() {
+    return "If greater than 0, the out-of-bag error is updated as every tree is added, in "
+      + "iteration order, and no more trees are added once it has changed by at most the "
+      + "tolerance over the last window trees, counting only the trees added once every "
+      + "instance has been out of bag. The number of iterations is left as it is, and the "
+      + "forest averages the trees it kept, whose number is given by getNumTreesBuilt() and "
+      + "the measureNumTreesBuilt measure. The trees are built in batches in a fork-join "
+      + "pool with as many threads as execution slots, one per processor with -fork-join. "
+      + "0 always builds all the trees.";
+  }
+
+  /**
+   * Get the number of trees over which the out-of-bag error must be stable
+   * for the forest to stop growing.
+   * 
+   * @return the size of the window, 0 if the forest always has all its trees
+   */
+  public int getOobWindow() {
+    return m_OobWindow;
+  }
+
+  /**
+   * Set the number of trees over which the out-of-bag error must be stable
+   * for the forest to stop growing.
+   * 
+   * @param oobWindow the size of the window, 0 to always build all the trees
+   */
+  public void setOobWindow(int oobWindow) {
+    m_OobWindow = oobWindow;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String oobToleranceTipText() {
+    return "The largest change of the out-of-bag error (the difference between its highest "
+      + "and lowest values) over the window for the forest to stop growing.";
+  }
+
+  /**
+   * Get the largest change of the out-of-bag error within the window for the
+   * forest to stop growing.
+   * 
+   * @return the tolerance
+   */
+  public double getOobTolerance() {
+    return m_OobTolerance;
+  }
+
+  /**
+   * Set the largest change of the out-of-bag error within the window for the
+   * forest to stop growing.
+   * 
+   * @param oobTolerance the tolerance
+   */
+  public void setOobTolerance(double oobTolerance) {
+    m_OobTolerance = oobTolerance;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String warmStartTipText() {
+    return "If true, the training set and its shared discretization, if any, are kept after "
+      + "building, so that more trees can be added to the forest with addTrees() instead of "
+      + "building it again. They are not serialized.";
+  }
+
+  /**
+   * Get whether the training set is kept to add trees after building.
+   * 
+   * @return true if trees can be added after building
+   */
+  public boolean getWarmStart() {
+    return m_WarmStart;
+  }
+
+  /**
+   * Set whether the training set is kept to add trees after building.
+   * 
+   * @param warmStart true if trees are to be added after building
+   */
+  public void setWarmStart(boolean warmStart) {
+    m_WarmStart = warmStart;
+  }
+
+  /**
+   * Returns the number of trees of the forest built, which is less than the
+   * number of iterations if it stopped growing when its out-of-bag error was
+   * stable.
+   * 
+   * @return the number of trees, 0 if no model has been built
+   */
+  public int getNumTreesBuilt() {
+    return m_Classifiers == null ? 0 : m_Classifiers.length;
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   * 
+   * @return an enumeration of all the available options
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    Vector<Option> newVector = new Vector<Option>();
+
+    newVector.addElement(new Option(
+      "\tDiscretize the training set once and share the codes among all the trees.",
+      "shared-discretization", 0, "-shared-discretization"));
+
+    newVector.addElement(new Option(
+      "\tBuild the trees as tasks of a fork-join pool, shared with the\n"
+        + "\tnode and subtree tasks of the trees.",
+      "fork-join", 0, "-fork-join"));
+
+    newVector.addElement(new Option(
+      "\tBuild the trees as tasks of a fork-join pool shared by all the\n"
+        + "\tforests of the JVM, which build at most as many trees at the same\n"
+        + "\ttime as it has threads (implies -fork-join).",
+      "shared-pool", 0, "-shared-pool"));
+
+    newVector.addElement(new Option(
+      "\tNumber of threads of the shared pool, and of trees of all the\n"
+        + "\tforests built in it at the same time (0 = one per processor).\n"
+        + "\tOnly the first forest that uses the pool sets it.\n"
+        + "\t(default 0)",
+      "shared-pool-size", 1, "-shared-pool-size <num>"));
+
+    newVector.addElement(new Option(
+      "\tGive every tree the number of copies of each instance in its bag\n"
+        + "\tinstead of a copy of the bag. The trees are built in a fork-join\n"
+        + "\tpool with -num-slots threads.",
+      "index-bagging", 0, "-index-bagging"));
+
+    newVector.addElement(new Option(
+      "\tNumber of trees over which the out-of-bag error must be stable\n"
+        + "\tto stop adding trees before -I (0 = always build -I trees).\n"
+        + "\tThe trees are built in a fork-join pool with -num-slots threads.\n"
+        + "\t(default 0)",
+      "oob-window", 1, "-oob-window <num>"));
+
+    newVector.addElement(new Option(
+      "\tLargest change of the out-of-bag error within the window for\n"
+        + "\tthe forest to stop growing.\n"
+        + "\t(default 0.001)",
+      "oob-tolerance", 1, "-oob-tolerance <num>"));
+
+    newVector.addElement(new Option(
+      "\tKeep the training set and its shared discretization after\n"
+        + "\tbuilding, so that trees can be added with addTrees().",
+      "warm-start", 0, "-warm-start"));
+
+    newVector.addAll(Collections.list(super.listOptions()));
+
+    return newVector.elements();
+  }
+
+  /**
+   * Gets the current settings of the forest.
+   * 
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  @Override
+  public String[] getOptions() {
+    Vector<String> result = new Vector<String>();
+
+    if (getSharedDiscretization()) {
+      result.add("-shared-discretization");
+    }
+
+    if (getForkJoin()) {
+      result.add("-fork-join");
+    }
+
+    if (getSharedPool()) {
+      result.add("-shared-pool");
+    }
+
+    if (getSharedPoolSize() > 0) {
+      result.add("-shared-pool-size");
+      result.add("" + getSharedPoolSize());
+    }
+
+    if (getIndexBagging()) {
+      result.add("-index-bagging");
+    }
+
+    if (getOobWindow() > 0) {
+      result.add("-oob-window");
+      result.add("" + getOobWindow());
+
+      result.add("-oob-tolerance");
+      result.add("" + getOobTolerance());
+    }
+
+    if (getWarmStart()) {
+      result.add("-warm-start");
+    }
+
+    Collections.addAll(result, super.getOptions());
+
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Parses a given list of options.
+   * 
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  @Override
+  public void setOptions(String[] options) throws Exception {
+    setSharedDiscretization(Utils.getFlag("shared-discretization", options));
+
+    setForkJoin(Utils.getFlag("fork-join", options));
+
+    setSharedPool(Utils.getFlag("shared-pool", options));
+
+    String tmpStr = Utils.getOption("shared-pool-size", options);
+    if (tmpStr.length() != 0) {
+      setSharedPoolSize(Integer.parseInt(tmpStr));
+    } else {
+      setSharedPoolSize(0);
+    }
+
+    setIndexBagging(Utils.getFlag("index-bagging", options));
+
+    tmpStr = Utils.getOption("oob-window", options);
+    if (tmpStr.length() != 0) {
+      setOobWindow(Integer.parseInt(tmpStr));
+    } else {
+      setOobWindow(0);
+    }
+
+    tmpStr = Utils.getOption("oob-tolerance", options);
+    if (tmpStr.length() != 0) {
+      setOobTolerance(Double.parseDouble(tmpStr));
+    } else {
+      setOobTolerance(0.001);
+    }
+
+    setWarmStart(Utils.getFlag("warm-start", options));
+
+    super.setOptions(options);
+  }
+
+  /**
+   * Builds the forest. The shared discretization, if any, only lives while
+   * the trees are built, unless it is kept with the training set for a warm
+   * start.
+   * 
+   * @param data the training data to be used for generating the forest
+   * @throws Exception if the classifier could not be built successfully
+   */
+  @Override
+  public void buildClassifier(Instances data) throws Exception {
+    m_SharedStore = null;
+    m_TrainingData = null;
+    boolean built = false;
+    try {
+      super.buildClassifier(data);
+      built = true;
+    } finally {
+      if (!m_WarmStart || !built) {
+        m_SharedStore = null;
+        m_TrainingData = null;
+      }
+    }
+  }
+
+  /**
+   * Adds trees to a forest built with a warm start. The new trees are seeded
+   * and given bags by continuing the streams of the forest from its last
+   * tree, and they reuse its shared discretization. The forest is then the
+   * one that building it with that many more iterations and no out-of-bag
+   * window would give: if the forest stopped growing early, the streams
+   * were rewound to the trees it kept, and the trees added are never cut
+   * short themselves. They are built as tasks of a fork-join pool, and the
+   * out-of-bag evaluation, if any, is done again over all the trees. The
+   * number of iterations becomes the number of trees.
+   * 
+   * @param numTrees the number of trees to add
+   * @throws Exception if any of the trees could not be built
+   */
+  public void addTrees(int numTrees) throws Exception {
+    if (m_Classifiers == null || m_TrainingData == null) {
+      throw new IllegalStateException(
+        "RandomForestMSU: trees can only be added to a forest built with a warm start.");
+    }
+
+    Classifier[] trees = m_Classifiers;
+    Classifier[] newTrees = AbstractClassifier.makeCopies(m_Classifier, numTrees);
+    m_Classifiers = Arrays.copyOf(trees, trees.length + numTrees);
+    for (int i = 0; i < numTrees; i++) {
+      m_Classifiers[trees.length + i] = newTrees[i];
+      if (m_Classifier instanceof Randomizable) {
+        ((Randomizable) newTrees[i]).setSeed(m_random.nextInt());
+      }
+    }
+
+    Instances header = m_data;
+    m_data = m_TrainingData;
+    if (m_CalcOutOfBag) {
+      m_inBag = new boolean[m_Classifiers.length][];
+    }
+    boolean built = false;
+    try {
+      buildClassifiers(trees.length, false);
+      if (m_CalcOutOfBag) {
+        evaluateOutOfBag();
+      }
+      m_NumIterations = m_Classifiers.length;
+      built = true;
+    } finally {
+      if (!built) {
+        m_Classifiers = trees;
+      }
+      m_data = header;
+      m_inBag = null;
+    }
+  }
+
+  /**
+   * Builds the trees. With fork-join, every tree is a task of a pool with as
+   * many threads as execution slots (all the processors if there is a single
+   * slot), instead of a job of the fixed thread pool of Bagging. The fork-join
+   * tasks of the trees go to the same pool, where idle threads steal them, so
+   * a deep tree does not leave the rest of the threads idle at the end of the
+   * build. With a shared pool, the trees of every forest built at the same
+   * time are queued in the same pool, which is never shut down, each one
+   * once it has a permit of the pool. The progress
+   * of every tree is printed in debug mode. With index bagging, the trees
+   * are built in the same way from the counts of their bags. With an
+   * out-of-bag window, the trees are built in rounds of as many trees as
+   * threads, until the out-of-bag error is stable.
+   * 
+   * @throws Exception if any of the trees could not be built
+   */
+  @Override
+  protected void buildClassifiers() throws Exception {
+    if (m_WarmStart) {
+      m_TrainingData = m_data;
+    }
+
+    if (!m_ForkJoin && !m_SharedPool && !m_IndexBagging && m_OobWindow <= 0) {
+      super.buildClassifiers();
+      return;
+    }
+
+    buildClassifiers(0, m_OobWindow > 0);
+  }
+
+  /**
+   * Builds the trees from an iteration on as tasks of a fork-join pool.
+   * 
+   * @param begin the first iteration
+   * @param untilStable whether to stop when the out-of-bag error is stable
+   * @throws Exception if any of the trees could not be built
+   */
+  private void buildClassifiers(int begin, boolean untilStable) throws Exception {
+    ForkJoinPool pool;
+    Semaphore permits = null;
+    if (m_SharedPool) {
+      SharedPool sharedPool = SharedPool.get(m_SharedPoolSize);
+      pool = sharedPool.m_Pool;
+      if (m_Debug && m_SharedPoolSize > 0 && pool.getParallelism() != m_SharedPoolSize) {
+        System.err.println("The shared pool already has " + pool.getParallelism()
+          + " threads, the size " + m_SharedPoolSize + " is ignored");
+      }
+      permits = sharedPool.m_Permits;
+    } else {
+      pool = new ForkJoinPool(poolParallelism());
+    }
+    AtomicInteger numBuilt = new AtomicInteger(begin);
+    try {
+      if (untilStable) {
+        buildUntilStable(pool, permits, numBuilt);
+      } else {
+        buildClassifiers(pool, permits, begin, m_Classifiers.length, numBuilt);
+      }
+    } finally {
+      if (!m_SharedPool) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of threads of the pool of the forest: the number of
+   * execution slots if there are several, one per processor if the trees
+   * are built as fork-join tasks or the slots are to be detected (0), and a
+   * single thread otherwise, so that -index-bagging and -oob-window alone
+   * keep the forest sequential.
+   * 
+   * @return the number of threads
+   */
+  private int poolParallelism() {
+    if (m_numExecutionSlots > 1) {
+      return m_numExecutionSlots;
+    }
+    return m_ForkJoin || m_numExecutionSlots < 1 ? Runtime.getRuntime().availableProcessors() : 1;
+  }
+
+  /**
+   * Builds the trees of a range of iterations as tasks of a fork-join pool.
+   * If the pool is shared, a permit is taken before submitting every tree,
+   * and the tree gives it back when it is done. After a failure, the trees
+   * still queued are skipped, so they do not hold the other forests.
+   * 
+   * @param pool the pool
+   * @param permits the permits of the shared pool, null if it is not shared
+   * @param begin the first iteration
+   * @param end the iteration after the last one
+   * @param numBuilt the number of trees built so far, for the progress
+   * @throws Exception if any of the trees could not be built
+   */
+  private void buildClassifiers(ForkJoinPool pool, final Semaphore permits, int begin, int end,
+    final AtomicInteger numBuilt) throws Exception {
+    List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>(end - begin);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    try {
+      for (int i = begin; i < end && !failed.get(); i++) {
+        final int iteration = i;
+        if (permits != null) {
+          permits.acquire();
+        }
+        try {
+          tasks.add(pool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              try {
+                if (failed.get()) {
+                  return null;
+                }
+                if (m_Debug) {
+                  System.err.println("Training tree (" + (iteration + 1) + ")");
+                }
+                if (useIndexBagging(iteration)) {
+                  buildFromCounts(iteration);
+                } else {
+                  m_Classifiers[iteration].buildClassifier(getTrainingSet(iteration));
+                }
+                int built = numBuilt.incrementAndGet();
+                if (m_Debug) {
+                  System.err.println("Tree (" + (iteration + 1) + ") built, " + built + " of "
+                    + m_Classifiers.length + " done");
+                }
+                return null;
+              } catch (Exception ex) {
+                failed.set(true);
+                throw ex;
+              } finally {
+                if (permits != null) {
+                  permits.release();
+                }
+              }
+            }
+          }));
+        } catch (RuntimeException ex) {
+          if (permits != null) {
+            permits.release();
+          }
+          throw ex;
+        }
+      }
+      for (ForkJoinTask<Void> task : tasks) {
+        try {
+          task.get();
+        } catch (ExecutionException ex) {
+          if (ex.getCause() instanceof Exception) {
+            throw (Exception) ex.getCause();
+          }
+          throw ex;
+        }
+      }
+    } catch (Exception ex) {
+      // Trees still queued after a failure must not hold the other forests
+      failed.set(true);
+      throw ex;
+    }
+  }
+
+  /**
+   * Builds the trees until the out-of-bag error has changed by at most the
+   * tolerance over the last window trees, or all of them are built. The
+   * error is updated with every tree in iteration order, so the number of
+   * trees kept does not depend on the number of threads. Only the errors
+   * from the tree that leaves the last instance out of its bag on count
+   * towards the window, since the first ones are measured on a few
+   * instances only. The forest is then cut down to the trees kept, leaving
+   * the number of iterations as it is, and the stream of seeds is rewound to
+   * the last tree kept.
+   * 
+   * @param pool the pool
+   * @param permits the permits of the shared pool, null if it is not shared
+   * @param numBuilt the number of trees built so far, for the progress
+   * @throws Exception if any of the trees could not be built
+   */
+  private void buildUntilStable(ForkJoinPool pool, Semaphore permits, AtomicInteger numBuilt)
+    throws Exception {
+    double[][] votes = new double[m_data.numInstances()][];
+    double[] errors = new double[m_Classifiers.length];
+    int firstNotOutOfBag = 0;
+    int firstCovered = -1;
+    int numTrees = 0;
+    while (numTrees < m_Classifiers.length) {
+      int end = Math.min(numTrees + pool.getParallelism(), m_Classifiers.length);
+      buildClassifiers(pool, permits, numTrees, end, numBuilt);
+      while (numTrees < end) {
+        errors[numTrees] = addOutOfBagVotes(numTrees, votes);
+        if (firstCovered < 0) {
+          // Instances never go back to having no votes
+          while (firstNotOutOfBag < votes.length && votes[firstNotOutOfBag] != null) {
+            firstNotOutOfBag++;
+          }
+          if (firstNotOutOfBag == votes.length) {
+            firstCovered = numTrees;
+          }
+        }
+        numTrees++;
+        if (firstCovered >= 0 && numTrees - firstCovered >= m_OobWindow
+          && numTrees < m_Classifiers.length) {
+          double min = errors[numTrees - m_OobWindow];
+          double max = min;
+          for (int i = numTrees - m_OobWindow + 1; i < numTrees; i++) {
+            min = Math.min(min, errors[i]);
+            max = Math.max(max, errors[i]);
+          }
+          if (max - min <= m_OobTolerance) {
+            if (m_Debug) {
+              System.err.println("Out-of-bag error " + errors[numTrees - 1]
+                + " stable over the last " + m_OobWindow + " trees, stopping at "
+                + numTrees + " of " + m_Classifiers.length + " trees");
+            }
+            m_Classifiers = Arrays.copyOf(m_Classifiers, numTrees);
+            if (m_inBag != null) {
+              m_inBag = Arrays.copyOf(m_inBag, numTrees);
+            }
+            m_random = new Random(m_Seed);
+            if (m_Classifier instanceof Randomizable) {
+              for (int i = 0; i < numTrees; i++) {
+                m_random.nextInt();
+              }
+            }
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the votes of the tree of an iteration for the instances out of its
+   * bag, and returns the out-of-bag error of the trees up to that one.
+   * 
+   * @param iteration the number of the iteration
+   * @param votes the class distributions summed for every instance, null
+   *          for the instances that have not been out of bag yet
+   * @return the weighted error rate over the instances that have been out
+   *         of bag, NaN if there are none
+   * @throws Exception if the tree could not classify an instance
+   */
+  private double addOutOfBagVotes(int iteration, double[][] votes) throws Exception {
+    boolean[] inBag = inBag(iteration);
+    double error = 0;
+    double total = 0;
+    for (int i = 0; i < votes.length; i++) {
+      Instance instance = m_data.instance(i);
+      if (!inBag[i]) {
+        double[] distribution = m_Classifiers[iteration].distributionForInstance(instance);
+        if (votes[i] == null) {
+          votes[i] = new double[distribution.length];
+        }
+        for (int j = 0; j < distribution.length; j++) {
+          votes[i][j] += distribution[j];
+        }
+      }
+      if (votes[i] != null) {
+        total += instance.weight();
+        if (Utils.maxIndex(votes[i]) != (int) instance.classValue()) {
+          error += instance.weight();
+        }
+      }
+    }
+    return total > 0 ? error / total : Double.NaN;
+  }
+
+  /**
+   * Evaluates the forest on the instances out of the bag of every tree, as
+   * Bagging does after building the trees.
+   * 
+   * @throws Exception if a tree could not classify an instance
+   */
+  private void evaluateOutOfBag() throws Exception {
+    boolean[][] inBag = new boolean[m_Classifiers.length][];
+    for (int j = 0; j < m_Classifiers.length; j++) {
+      inBag[j] = inBag(j);
+    }
+
+    m_OutOfBagEvaluationObject = new Evaluation(m_data);
+    for (int i = 0; i < m_data.numInstances(); i++) {
+      double[] votes = new double[m_data.numClasses()];
+      for (int j = 0; j < m_Classifiers.length; j++) {
+        if (inBag[j][i]) {
+          continue;
+        }
+        double[] distribution = m_Classifiers[j].distributionForInstance(m_data.instance(i));
+        for (int k = 0; k < distribution.length; k++) {
+          votes[k] += distribution[k];
+        }
+      }
+      double sum = Utils.sum(votes);
+      if (sum > 0) {
+        Utils.normalize(votes, sum);
+        m_OutOfBagEvaluationObject.evaluationForSingleInstance(votes, m_data.instance(i),
+          getStoreOutOfBagPredictions());
+      }
+    }
+  }
+
+  /**
+   * Returns which instances are in the bag of the tree of an iteration,
+   * drawing the bag again if it was not recorded.
+   * 
+   * @param iteration the number of the iteration
+   * @return whether every instance is in the bag
+   */
+  private boolean[] inBag(int iteration) {
+    if (m_inBag != null && m_inBag[iteration] != null) {
+      return m_inBag[iteration];
+    }
+    boolean[] inBag = new boolean[m_data.numInstances()];
+    for (int draw : drawBag(new Random(m_Seed + iteration), m_BagSizePercent)) {
+      inBag[draw] = true;
+    }
+    return inBag;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instance, averaging the trees built, which are fewer than the number of
+   * iterations if the forest stopped growing early.
+   * 
+   * @param instance the instance to be classified
+   * @return predicted class probability distribution
+   * @throws Exception if distribution can't be computed successfully
+   */
+  @Override
+  public double[] distributionForInstance(Instance instance) throws Exception {
+    double[] sums = new double[instance.numClasses()];
+    for (Classifier tree : m_Classifiers) {
+      double[] distribution = tree.distributionForInstance(instance);
+      for (int j = 0; j < distribution.length; j++) {
+        sums[j] += distribution[j];
+      }
+    }
+    if (Utils.eq(Utils.sum(sums), 0)) {
+      return sums;
+    }
+    Utils.normalize(sums);
+    return sums;
+  }
+
+  /**
+   * Returns an enumeration of the additional measure names.
+   * 
+   * @return an enumeration of the measure names
+   */
+  @Override
+  public Enumeration<String> enumerateMeasures() {
+    Vector<String> newVector = new Vector<String>();
+    newVector.addElement("measureNumTreesBuilt");
+    newVector.addAll(Collections.list(super.enumerateMeasures()));
+    return newVector.elements();
+  }
+
+  /**
+   * Returns the value of the named measure.
+   * 
+   * @param additionalMeasureName the name of the measure to query for its
+   *          value
+   * @return the value of the named measure
+   * @throws IllegalArgumentException if the named measure is not supported
+   */
+  @Override
+  public double getMeasure(String additionalMeasureName) {
+    if (additionalMeasureName.equalsIgnoreCase("measureNumTreesBuilt")) {
+      return getNumTreesBuilt();
+    }
+    return super.getMeasure(additionalMeasureName);
+  }
+
+  /**
+   * Returns description of the forest, with the number of trees built when
+   * it may have stopped growing early.
+   * 
+   * @return description of the forest as a string
+   */
+  @Override
+  public String toString() {
+    if (m_OobWindow <= 0 || m_Classifiers == null) {
+      return super.toString();
+    }
+    return super.toString() + "\nNumber of trees built: " + m_Classifiers.length + " of "
+      + m_NumIterations + "\n";
+  }
+
+  /**
+   * Whether the tree of an iteration is built from the counts of its bag.
+   * 
+   * @param iteration the number of the iteration
+   * @return true if the bag is not to be materialized
+   */
+  protected boolean useIndexBagging(int iteration) {
+    return m_IndexBagging && m_Classifiers[iteration] instanceof RandomTreeMSU
+      && ((RandomTreeMSU) m_Classifiers[iteration]).getNumFolds() == 0
+      && (m_SharedDiscretization || !((RandomTreeMSU) m_Classifiers[iteration]).getDiscretizeOnce())
+      && getRepresentCopiesUsingWeights();
+  }
+
+  /**
+   * Builds the tree of an iteration from the counts of its bag, drawn as in
+   * getTrainingSet(), over the rows of the shared store. The store is
+   * discretized once only when the discretization is shared; otherwise the
+   * nodes discretize their own rows, as they do with a copy of the bag.
+   * 
+   * @param iteration the number of the iteration
+   * @throws Exception if the tree could not be built
+   */
+  protected void buildFromCounts(int iteration) throws Exception {
+    MSUColumnStore store;
+    int[] counts = new int[m_data.numInstances()];
+    synchronized (this) {
+      if (m_SharedStore == null) {
+        m_SharedStore = MSUColumnStore.newInstance(m_data, m_SharedDiscretization);
+      }
+      store = m_SharedStore;
+
+      Random r = new Random(m_Seed + iteration);
+      int[] draws = drawBag(r, m_BagSizePercent);
+      for (int draw : draws) {
+        counts[draw]++;
+      }
+      if (m_CalcOutOfBag) {
+        m_inBag[iteration] = new boolean[m_data.numInstances()];
+        for (int draw : draws) {
+          m_inBag[iteration][draw] = true;
+        }
+      }
+    }
+
+    ((RandomTreeMSU) m_Classifiers[iteration]).buildClassifier(m_data, store, counts);
+  }
+
+  /**
+   * Returns a training set for a particular iteration. When the
+   * discretization is shared, the bag is drawn here exactly as
+   * Instances.resampleWithWeights() does it, so that the tree can be told
+   * which rows of the shared store its bag is made of.
+   * 
+   * @param iteration the number of the iteration for the requested training
+   *          set.
+   * @return the training set for the supplied iteration number
+   * @throws Exception if something goes wrong when generating a training set.
+   */
+  @Override
+  protected synchronized Instances getTrainingSet(int iteration) throws Exception {
+    if (!m_SharedDiscretization || !(m_Classifiers[iteration] instanceof RandomTreeMSU)
+      || ((RandomTreeMSU) m_Classifiers[iteration]).getNumFolds() > 0) {
+      return super.getTrainingSet(iteration);
+    }
+
+    if (m_SharedStore == null) {
+      m_SharedStore = MSUColumnStore.newInstance(m_data);
+    }
+
+    Random r = new Random(m_Seed + iteration);
+    boolean[] inBag = null;
+    if (m_CalcOutOfBag) {
+      m_inBag[iteration] = new boolean[m_data.numInstances()];
+      inBag = m_inBag[iteration];
+    }
+    int[] draws = drawBag(r, m_BagSizePercent);
+
+    Instances bag = new Instances(m_data, draws.length);
+    int[] rows;
+    if (getRepresentCopiesUsingWeights()) {
+      int[] counts = new int[m_data.numInstances()];
+      int numRows = 0;
+      for (int draw : draws) {
+        if (counts[draw]++ == 0) {
+          numRows++;
+        }
+      }
+      rows = new int[numRows];
+      numRows = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          bag.add(m_data.instance(i));
+          bag.instance(bag.numInstances() - 1).setWeight(counts[i]);
+          rows[numRows++] = i;
+        }
+      }
+    } else {
+      for (int draw : draws) {
+        bag.add(m_data.instance(draw));
+        bag.instance(bag.numInstances() - 1).setWeight(1);
+      }
+      rows = draws;
+    }
+    if (inBag != null) {
+      for (int draw : draws) {
+        inBag[draw] = true;
+      }
+    }
+
+    ((RandomTreeMSU) m_Classifiers[iteration]).setSharedStore(m_SharedStore, rows);
+
+    return bag;
+  }
+
+  /**
+   * Draws the rows of a bag with the alias method, consuming the random
+   * number generator in the same way as Instances.resampleWithWeights().
+   * 
+   * @param random the random number generator
+   * @param bagSizePercent the size of the bag, as a percentage of the
+   *          training set size
+   * @return the drawn rows, in drawing order
+   */
+  protected int[] drawBag(Random random, double bagSizePercent) {
+    int numRows = m_data.numInstances();
+    int[] draws = new int[(int) (numRows * (bagSizePercent / 100.0))];
+    if (numRows == 0) {
+      return new int[0];
+    }
+
+    double[] P = new double[numRows];
+    for (int i = 0; i < numRows; i++) {
+      P[i] = m_data.instance(i).weight();
+    }
+    Utils.normalize(P);
+
+    // Build the alias tables
+    double[] Q = new double[numRows];
+    int[] A = new int[numRows];
+    int[] W = new int[numRows];
+    int NN = -1;
+    int PP = numRows;
+    for (int i = 0; i < numRows; i++) {
+      if (P[i] < 0) {
+        throw new IllegalArgumentException("Weights have to be positive.");
+      }
+      Q[i] = numRows * P[i];
+      if (Q[i] < 1.0) {
+        W[++NN] = i;
+      } else {
+        W[--PP] = i;
+      }
+    }
+    if (NN > -1 && PP < numRows) {
+      for (int k = 0; k < numRows - 1; k++) {
+        int i = W[k];
+        int j = W[PP];
+        A[i] = j;
+        Q[j] += Q[i] - 1;
+        if (Q[j] < 1.0) {
+          PP++;
+        }
+        if (PP >= numRows) {
+          break;
+        }
+      }
+    }
+    for (int i = 0; i < numRows; i++) {
+      Q[i] += i;
+    }
+
+    // Draw the bag
+    for (int k = 0; k < draws.length; k++) {
+      double U = numRows * random.nextDouble();
+      int I = (int) U;
+      draws[k] = U < Q[I] ? I : A[I];
+    }
+
+    return draws;
+  }
+
   /**
    * This method only accepts RandomTreeMSU arguments.
    *
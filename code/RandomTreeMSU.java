@@ -26,19 +26,25 @@ import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Option;
 import weka.core.Utils;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
-import upo.jcu.math.MatrixUtils;
-import upo.jcu.math.data.dataset.DataType;
-import upo.jcu.math.stat.MultivariateStatUtils;
-import upo.jml.data.dataset.ClassificationDataset;
-import upo.jml.data.dataset.DatasetUtils;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import upo.jcu.utils.ArrayUtils;
+import upo.jml.data.transformation.discretize.FayyadIranisDiscretization;
+import upo.jml.data.transformation.discretize.MDLBasedDiscretization;
 
 /**
  * <!-- globalinfo-start --> Class for constructing a tree that considers K
@@ -99,6 +105,62 @@ import upo.jml.data.dataset.DatasetUtils;
  * </pre>
  *
  * <pre>
+ * -discretize-once
+ *  Discretize the training data once at the root and let the nodes
+ *  reuse its codes, instead of discretizing every node.
+ * </pre>
+ *
+ * <pre>
+ * -weighted-msu
+ *  Accumulate the weights of the instances in the MSU counts,
+ *  instead of counting every instance once.
+ * </pre>
+ *
+ * <pre>
+ * -msu-max-order &lt;num&gt;
+ *  Maximum number of ancestor attributes the MSU conditions on,
+ *  keeping the most recent ones (0 = all).
+ *  (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -msu-sample-size &lt;num&gt;
+ *  Number of instances above which the MSU of a node is estimated
+ *  on a sample of that size, stratified by class (0 = exact).
+ *  (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -split-on-bins
+ *  Split numeric attributes on the best one of the cut points
+ *  of their MSU discretization, instead of searching all the
+ *  thresholds between their values. Needs -discretize-once.
+ * </pre>
+ *
+ * <pre>
+ * -level-wise
+ *  Grow the tree breadth first, one level at a time, instead of
+ *  depth first: the first candidates of all the nodes of a level
+ *  are scored before any of them is split, in a single pass over
+ *  the instances if -discretize-once is set.
+ * </pre>
+ *
+ * <pre>
+ * -node-parallel-threshold &lt;num&gt;
+ *  Minimum number of instances of a node to evaluate its
+ *  candidate attributes in parallel (0 = never).
+ *  (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -subtree-parallel-threshold &lt;num&gt;
+ *  Minimum number of instances of a subtree to build it as a
+ *  separate task, with its own random number generator
+ *  (0 = subtrees are built sequentially).
+ *  (default 0)
+ * </pre>
+ *
+ * <pre>
  * -output-debug-info
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console
@@ -129,6 +191,67 @@ public class RandomTreeMSU extends RandomTree {
      */
     private static final long serialVersionUID = -9051129597407396724L;
 
+    /**
+     * Whether the data is discretized once at the root instead of at every node
+     */
+    protected boolean m_DiscretizeOnce = false;
+
+    /**
+     * Whether the MSU counts accumulate the weights of the instances
+     */
+    protected boolean m_WeightedMSU = false;
+
+    /**
+     * Maximum number of ancestor attributes the MSU conditions on (0 = all)
+     */
+    protected int m_MsuMaxOrder = 0;
+
+    /**
+     * Number of rows above which the MSU of a node is estimated on a
+     * stratified sample of that size (0 = always exact)
+     */
+    protected int m_MsuSampleSize = 0;
+
+    /**
+     * Whether numeric attributes are split on the cut points of their MSU
+     * discretization
+     */
+    protected boolean m_SplitOnBins = false;
+
+    /**
+     * Whether the tree is grown breadth first
+     */
+    protected boolean m_LevelWise = false;
+
+    /**
+     * Minimum number of instances of a node to evaluate its candidates in
+     * parallel (0 = never)
+     */
+    protected int m_NodeParallelThreshold = 0;
+
+    /**
+     * Minimum number of instances of a successor to build it as a separate
+     * task (0 = successors are built sequentially)
+     */
+    protected int m_SubtreeParallelThreshold = 0;
+
+    /**
+     * Discretized data shared by the forest, used for the next build only
+     */
+    protected transient MSUColumnStore m_SharedStore = null;
+
+    /**
+     * Rows of the shared store that make up the next training set
+     */
+    protected transient int[] m_SharedRows = null;
+
+    /**
+     * MSU configuration id of the ancestors of every row of the store at the
+     * last node it went through, while a tree with a discretized store is
+     * built
+     */
+    protected transient int[] m_MsuAncestorIds = null;
+
     /**
      * Returns a string describing classifier
      *
@@ -165,6 +288,430 @@ public class RandomTreeMSU extends RandomTree {
         return result;
     }
 
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String discretizeOnceTipText() {
+        return "If true, the training data is discretized once at the root and the "
+                + "nodes reuse its codes, instead of discretizing the data of every node.";
+    }
+
+    /**
+     * Get whether the data is discretized once at the root.
+     *
+     * @return true if the data is discretized once
+     */
+    public boolean getDiscretizeOnce() {
+        return m_DiscretizeOnce;
+    }
+
+    /**
+     * Set whether the data is discretized once at the root.
+     *
+     * @param discretizeOnce true if the data is to be discretized once
+     */
+    public void setDiscretizeOnce(boolean discretizeOnce) {
+        m_DiscretizeOnce = discretizeOnce;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String weightedMSUTipText() {
+        return "If true, the MSU counts accumulate the weights of the instances, so an "
+                + "instance with weight w counts as w copies of it (e.g. the copies of a bag "
+                + "represented using weights).";
+    }
+
+    /**
+     * Get whether the MSU counts accumulate the weights of the instances.
+     *
+     * @return true if the MSU is weighted
+     */
+    public boolean getWeightedMSU() {
+        return m_WeightedMSU;
+    }
+
+    /**
+     * Set whether the MSU counts accumulate the weights of the instances.
+     *
+     * @param weightedMSU true if the MSU is to be weighted
+     */
+    public void setWeightedMSU(boolean weightedMSU) {
+        m_WeightedMSU = weightedMSU;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String msuMaxOrderTipText() {
+        return "The maximum number of ancestor attributes the MSU of a node conditions on; "
+                + "only the most recently selected ones are kept (0 = all of them).";
+    }
+
+    /**
+     * Get the maximum number of ancestor attributes the MSU conditions on.
+     *
+     * @return the maximum order, 0 if unlimited
+     */
+    public int getMsuMaxOrder() {
+        return m_MsuMaxOrder;
+    }
+
+    /**
+     * Set the maximum number of ancestor attributes the MSU conditions on.
+     *
+     * @param msuMaxOrder the maximum order, 0 for unlimited
+     */
+    public void setMsuMaxOrder(int msuMaxOrder) {
+        m_MsuMaxOrder = msuMaxOrder;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String msuSampleSizeTipText() {
+        return "The number of instances above which the MSU of a node is estimated on a "
+                + "sample of that size, stratified by class; split points are still computed "
+                + "from all the instances (0 = the MSU is always exact).";
+    }
+
+    /**
+     * Get the number of instances above which the MSU is estimated on a
+     * sample.
+     *
+     * @return the sample size, 0 if the MSU is always exact
+     */
+    public int getMsuSampleSize() {
+        return m_MsuSampleSize;
+    }
+
+    /**
+     * Set the number of instances above which the MSU is estimated on a
+     * sample.
+     *
+     * @param msuSampleSize the sample size, 0 for an always exact MSU
+     */
+    public void setMsuSampleSize(int msuSampleSize) {
+        m_MsuSampleSize = msuSampleSize;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String splitOnBinsTipText() {
+        return "If true, numeric attributes are split on the best one of the cut points "
+                + "found by the discretization of the MSU, which only takes a histogram of "
+                + "the node, instead of on the best threshold between their sorted values. "
+                + "Needs the data to be discretized once, since the discretization of every "
+                + "node sorts the values anyway.";
+    }
+
+    /**
+     * Get whether numeric attributes are split on the cut points of their
+     * MSU discretization.
+     *
+     * @return true if the splits are taken from the discretization
+     */
+    public boolean getSplitOnBins() {
+        return m_SplitOnBins;
+    }
+
+    /**
+     * Set whether numeric attributes are split on the cut points of their
+     * MSU discretization.
+     *
+     * @param splitOnBins true if the splits are to be taken from the
+     * discretization
+     */
+    public void setSplitOnBins(boolean splitOnBins) {
+        m_SplitOnBins = splitOnBins;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String levelWiseTipText() {
+        return "If true, the tree is grown breadth first: the first candidate attributes of "
+                + "all the nodes of a level are scored before any of them is split, reading the "
+                + "codes of the data discretized once in a single sweep over the instances, and "
+                + "then the nodes are split from left to right.";
+    }
+
+    /**
+     * Get whether the tree is grown breadth first.
+     *
+     * @return true if the tree is grown level by level
+     */
+    public boolean getLevelWise() {
+        return m_LevelWise;
+    }
+
+    /**
+     * Set whether the tree is grown breadth first.
+     *
+     * @param levelWise true if the tree is to be grown level by level
+     */
+    public void setLevelWise(boolean levelWise) {
+        m_LevelWise = levelWise;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String nodeParallelThresholdTipText() {
+        return "The minimum number of instances of a node to evaluate its candidate "
+                + "attributes in parallel, using the common fork-join pool (0 = never).";
+    }
+
+    /**
+     * Get the minimum number of instances of a node to evaluate its
+     * candidates in parallel.
+     *
+     * @return the threshold, 0 if candidates are always evaluated sequentially
+     */
+    public int getNodeParallelThreshold() {
+        return m_NodeParallelThreshold;
+    }
+
+    /**
+     * Set the minimum number of instances of a node to evaluate its
+     * candidates in parallel.
+     *
+     * @param nodeParallelThreshold the threshold, 0 to always evaluate
+     * candidates sequentially
+     */
+    public void setNodeParallelThreshold(int nodeParallelThreshold) {
+        m_NodeParallelThreshold = nodeParallelThreshold;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String subtreeParallelThresholdTipText() {
+        return "The minimum number of instances of a subtree to build it as a separate "
+                + "fork-join task (0 = subtrees are built sequentially). When enabled, every "
+                + "subtree gets its own random number generator, so the tree differs from the "
+                + "sequential one but only depends on the seed.";
+    }
+
+    /**
+     * Get the minimum number of instances of a subtree to build it as a
+     * separate task.
+     *
+     * @return the threshold, 0 if subtrees are built sequentially
+     */
+    public int getSubtreeParallelThreshold() {
+        return m_SubtreeParallelThreshold;
+    }
+
+    /**
+     * Set the minimum number of instances of a subtree to build it as a
+     * separate task.
+     *
+     * @param subtreeParallelThreshold the threshold, 0 to build subtrees
+     * sequentially
+     */
+    public void setSubtreeParallelThreshold(int subtreeParallelThreshold) {
+        m_SubtreeParallelThreshold = subtreeParallelThreshold;
+    }
+
+    /**
+     * Sets the discretized data to be used by the next call to
+     * buildClassifier(), instead of discretizing the training set. The i-th
+     * training instance must correspond to the given i-th row of the store.
+     *
+     * @param store the discretized data shared by the forest
+     * @param rows the rows of the store that make up the training set
+     */
+    protected void setSharedStore(MSUColumnStore store, int[] rows) {
+        m_SharedStore = store;
+        m_SharedRows = rows;
+    }
+
+    /**
+     * Lists the command-line options for this classifier.
+     *
+     * @return an enumeration over all possible options
+     */
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> newVector = new Vector<Option>();
+
+        newVector.addElement(new Option(
+                "\tDiscretize the training data once at the root and let the nodes\n"
+                + "\treuse its codes, instead of discretizing every node.",
+                "discretize-once", 0, "-discretize-once"));
+
+        newVector.addElement(new Option(
+                "\tAccumulate the weights of the instances in the MSU counts,\n"
+                + "\tinstead of counting every instance once.",
+                "weighted-msu", 0, "-weighted-msu"));
+
+        newVector.addElement(new Option(
+                "\tMaximum number of ancestor attributes the MSU conditions on,\n"
+                + "\tkeeping the most recent ones (0 = all).\n"
+                + "\t(default 0)",
+                "msu-max-order", 1, "-msu-max-order <num>"));
+
+        newVector.addElement(new Option(
+                "\tNumber of instances above which the MSU of a node is estimated\n"
+                + "\ton a sample of that size, stratified by class (0 = exact).\n"
+                + "\t(default 0)",
+                "msu-sample-size", 1, "-msu-sample-size <num>"));
+
+        newVector.addElement(new Option(
+                "\tSplit numeric attributes on the best one of the cut points\n"
+                + "\tof their MSU discretization, instead of searching all the\n"
+                + "\tthresholds between their values. Needs -discretize-once.",
+                "split-on-bins", 0, "-split-on-bins"));
+
+        newVector.addElement(new Option(
+                "\tGrow the tree breadth first, one level at a time, instead of\n"
+                + "\tdepth first: the first candidates of all the nodes of a level\n"
+                + "\tare scored before any of them is split, in a single pass over\n"
+                + "\tthe instances if -discretize-once is set.",
+                "level-wise", 0, "-level-wise"));
+
+        newVector.addElement(new Option(
+                "\tMinimum number of instances of a node to evaluate its\n"
+                + "\tcandidate attributes in parallel (0 = never).\n"
+                + "\t(default 0)",
+                "node-parallel-threshold", 1, "-node-parallel-threshold <num>"));
+
+        newVector.addElement(new Option(
+                "\tMinimum number of instances of a subtree to build it as a\n"
+                + "\tseparate task, with its own random number generator\n"
+                + "\t(0 = subtrees are built sequentially).\n"
+                + "\t(default 0)",
+                "subtree-parallel-threshold", 1, "-subtree-parallel-threshold <num>"));
+
+        newVector.addAll(Collections.list(super.listOptions()));
+
+        return newVector.elements();
+    }
+
+    /**
+     * Gets options from this classifier.
+     *
+     * @return the options for the current setup
+     */
+    @Override
+    public String[] getOptions() {
+        Vector<String> result = new Vector<String>();
+
+        if (getDiscretizeOnce()) {
+            result.add("-discretize-once");
+        }
+
+        if (getWeightedMSU()) {
+            result.add("-weighted-msu");
+        }
+
+        if (getMsuMaxOrder() > 0) {
+            result.add("-msu-max-order");
+            result.add("" + getMsuMaxOrder());
+        }
+
+        if (getMsuSampleSize() > 0) {
+            result.add("-msu-sample-size");
+            result.add("" + getMsuSampleSize());
+        }
+
+        if (getSplitOnBins()) {
+            result.add("-split-on-bins");
+        }
+
+        if (getLevelWise()) {
+            result.add("-level-wise");
+        }
+
+        if (getNodeParallelThreshold() > 0) {
+            result.add("-node-parallel-threshold");
+            result.add("" + getNodeParallelThreshold());
+        }
+
+        if (getSubtreeParallelThreshold() > 0) {
+            result.add("-subtree-parallel-threshold");
+            result.add("" + getSubtreeParallelThreshold());
+        }
+
+        Collections.addAll(result, super.getOptions());
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Parses a given list of options.
+     *
+     * @param options the list of options as an array of strings
+     * @throws Exception if an option is not supported
+     */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        setDiscretizeOnce(Utils.getFlag("discretize-once", options));
+
+        setWeightedMSU(Utils.getFlag("weighted-msu", options));
+
+        String tmpStr = Utils.getOption("msu-max-order", options);
+        if (tmpStr.length() != 0) {
+            setMsuMaxOrder(Integer.parseInt(tmpStr));
+        } else {
+            setMsuMaxOrder(0);
+        }
+
+        tmpStr = Utils.getOption("msu-sample-size", options);
+        if (tmpStr.length() != 0) {
+            setMsuSampleSize(Integer.parseInt(tmpStr));
+        } else {
+            setMsuSampleSize(0);
+        }
+
+        setSplitOnBins(Utils.getFlag("split-on-bins", options));
+
+        setLevelWise(Utils.getFlag("level-wise", options));
+
+        tmpStr = Utils.getOption("node-parallel-threshold", options);
+        if (tmpStr.length() != 0) {
+            setNodeParallelThreshold(Integer.parseInt(tmpStr));
+        } else {
+            setNodeParallelThreshold(0);
+        }
+
+        tmpStr = Utils.getOption("subtree-parallel-threshold", options);
+        if (tmpStr.length() != 0) {
+            setSubtreeParallelThreshold(Integer.parseInt(tmpStr));
+        } else {
+            setSubtreeParallelThreshold(0);
+        }
+
+        super.setOptions(options);
+    }
+
     /**
      * The inner class for dealing with the tree.
      */
@@ -180,7 +727,7 @@ public class RandomTreeMSU extends RandomTree {
         }
 
         /**
-         * Recursively generates a tree.
+         * Generates a tree.
          *
          * @param data the data to work with
          * @param classProbs the class distribution
@@ -195,6 +742,194 @@ public class RandomTreeMSU extends RandomTree {
         protected void buildTree(Instances data, double[] classProbs,
                 int[] attIndicesWindow, double totalWeight, Random random, int depth,
                 double minVariance, int[] msuSubset) throws Exception {
+            MSUColumnStore store = MSUColumnStore.newInstance(data, m_DiscretizeOnce);
+            int[] rows = new int[data.numInstances()];
+            double[] weights = new double[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+                weights[i] = data.instance(i).weight();
+            }
+
+            buildTree(store, weights, rows, 0, rows.length, classProbs, attIndicesWindow,
+                    random, depth, msuSubset);
+        }
+
+        /**
+         * Generates a tree. The node is made of the slice [begin, end) of the
+         * row indices, which is partitioned in place among its successors. If
+         * the store is discretized, the MSU is computed from its codes;
+         * otherwise, the data of the node is discretized on its own. Nodes are
+         * built depth first from an explicit stack, in the same order as a
+         * recursion would, so the depth of the tree is not bounded by the
+         * stack of the thread. If the tree is grown level-wise, the nodes are
+         * built one level at a time instead, see buildLevels().
+         *
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param begin the first position of the node in the row indices
+         * @param end the position after the last one of the node
+         * @param classProbs the class distribution
+         * @param attIndicesWindow the attribute window to choose attributes
+         * from
+         * @param random random number generator for choosing random attributes
+         * @param depth the current depth
+         * @param msuSubset Multivariate Symmetrical Uncertainty (MSU)
+         * attributes subset,
+         * @throws Exception if generation fails
+         */
+        protected void buildTree(MSUColumnStore store, double[] weights, int[] rows, int begin, int end,
+                double[] classProbs, int[] attIndicesWindow, Random random, int depth,
+                int[] msuSubset) throws Exception {
+            build(store, weights, rows, new Node(this, begin, end, classProbs, attIndicesWindow, random,
+                    depth, msuSubset, null, 0));
+        }
+
+        /**
+         * Builds the subtree of a pending node.
+         */
+        private void build(MSUColumnStore store, double[] weights, int[] rows, Node root) throws Exception {
+            List<Node> innerNodes = new ArrayList<Node>();
+            List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+
+            if (m_LevelWise) {
+                buildLevels(store, weights, rows, root, innerNodes, tasks);
+            } else {
+                Deque<Node> pending = new ArrayDeque<Node>();
+                pending.push(root);
+                while (!pending.isEmpty()) {
+                    Node node = pending.pop();
+                    List<Node> successors = node.m_Tree.buildNode(store, weights, rows, node, tasks);
+                    if (successors != null) {
+                        innerNodes.add(node);
+                        // The first successor is built first
+                        for (int i = successors.size() - 1; i >= 0; i--) {
+                            pending.push(successors.get(i));
+                        }
+                    }
+                }
+            }
+            for (ForkJoinTask<Void> task : tasks) {
+                task.join();
+            }
+
+            // Successors were built after their parents, so they are complete
+            // when their parents are visited in reverse order
+            for (int i = innerNodes.size() - 1; i >= 0; i--) {
+                Node node = innerNodes.get(i);
+                // If all successors are non-empty, we don't need to store the class
+                // distribution
+                boolean emptySuccessor = false;
+                for (int j = 0; j < node.m_Tree.m_Successors.length; j++) {
+                    if (node.m_Tree.m_Successors[j].m_ClassDistribution == null) {
+                        emptySuccessor = true;
+                        break;
+                    }
+                }
+                if (emptySuccessor) {
+                    node.m_Tree.m_ClassDistribution = node.m_ClassProbs.clone();
+                }
+            }
+        }
+
+        /**
+         * Builds the subtree of a pending node one level at a time. Every node
+         * of a level draws its first candidates before any of them is split,
+         * and those candidates are scored together by evaluateLevel(); then
+         * the nodes choose their splits and partition their rows, from left to
+         * right, and their successors make up the next level.
+         */
+        private void buildLevels(MSUColumnStore store, double[] weights, int[] rows, Node root,
+                List<Node> innerNodes, List<ForkJoinTask<Void>> tasks) throws Exception {
+            List<Node> level = new ArrayList<Node>();
+
+            level.add(root);
+            while (!level.isEmpty()) {
+                List<SplitSearch> searches = new ArrayList<SplitSearch>(level.size());
+                for (Node node : level) {
+                    SplitSearch search = node.m_Tree.openNode(store, weights, rows, node);
+                    if (search != null) {
+                        searches.add(search);
+                    }
+                }
+
+                evaluateLevel(store, searches);
+
+                List<Node> nextLevel = new ArrayList<Node>();
+                for (SplitSearch search : searches) {
+                    List<Node> successors = search.m_Node.m_Tree.closeNode(store, weights, rows, search, tasks);
+                    if (successors != null) {
+                        innerNodes.add(search.m_Node);
+                        nextLevel.addAll(successors);
+                    }
+                }
+                level = nextLevel;
+            }
+        }
+
+        /**
+         * Scores the first candidates drawn by the nodes of a level, node
+         * after node. If the store is discretized, their codes are read
+         * straight from its columns through the rows of every node, without
+         * copying them; otherwise every node discretized and scored its
+         * candidates when it was opened. Nodes large enough to score their
+         * candidates in parallel still do so.
+         */
+        private void evaluateLevel(MSUColumnStore store, List<SplitSearch> searches) {
+            if (!store.isDiscretized()) {
+                return;
+            }
+
+            for (SplitSearch search : searches) {
+                if (search.m_NumDrawn > 0) {
+                    search.evaluate(0, search.m_NumDrawn);
+                }
+            }
+        }
+
+        /**
+         * Chooses the split of a node and partitions its rows among its
+         * successors, without building them.
+         *
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param node the node, with the state it receives from its parent
+         * @param tasks the list where the successors built as separate tasks
+         * are added
+         * @return the successors left to build, or null if the node is a leaf
+         * @throws Exception if generation fails
+         */
+        private List<Node> buildNode(MSUColumnStore store, double[] weights, int[] rows, Node node,
+                List<ForkJoinTask<Void>> tasks) throws Exception {
+            SplitSearch search = openNode(store, weights, rows, node);
+            if (search == null) {
+                return null;
+            }
+
+            if (search.m_NumDrawn > 0) {
+                search.evaluate(0, search.m_NumDrawn);
+            }
+
+            return closeNode(store, weights, rows, search, tasks);
+        }
+
+        /**
+         * Prepares the search for the split of a node and draws its first
+         * candidates, as many as are sure to be investigated, without scoring
+         * them.
+         *
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param node the node, with the state it receives from its parent
+         * @return the search, or null if the node is a leaf
+         */
+        private SplitSearch openNode(MSUColumnStore store, double[] weights, int[] rows, Node node) {
+            int begin = node.m_Begin;
+            int end = node.m_End;
+            double[] classProbs = node.m_ClassProbs;
+            int[] msuSubset = node.m_MsuSubset;
 /*
             if (msuSubset != null) {
                 System.out.println("MSU subset: " + Arrays.toString(msuSubset));
@@ -202,336 +937,1030 @@ public class RandomTreeMSU extends RandomTree {
                 System.out.println("MSU subset: ---");
             }*/
             // Make leaf if there are no training instances
-            if (data.numInstances() == 0) {
+            if (begin == end) {
                 m_Attribute = -1;
                 m_ClassDistribution = null;
                 m_Prop = null;
+                return null;
+            }
+
+            // Check if node doesn't contain enough instances or is pure
+            // or maximum depth reached
+            double totalWeight = Utils.sum(classProbs);
+            if (totalWeight < 2 * m_MinNum
+                    || Utils.eq(classProbs[Utils.maxIndex(classProbs)], totalWeight)
+
+                    || // check tree depth
+                    ((getMaxDepth() > 0) && (node.m_Depth >= getMaxDepth()))) {
+
+                // Make leaf
+                m_Attribute = -1;
+                m_ClassDistribution = classProbs.clone();
+                m_Prop = null;
+                return null;
+            }
+
+            // The nodes of a level draw their candidates at the same time, so
+            // each one needs its own attribute window
+            int[] attIndicesWindow = m_LevelWise ? node.m_AttIndicesWindow.clone() : node.m_AttIndicesWindow;
+            if (debug) System.out.println("==========================");
+            if (debug) System.out.println("\tatt indices window: " + Arrays.toString(attIndicesWindow));
+            if (debug) System.out.println("\twindow size: " + attIndicesWindow.length);
+            if (debug) System.out.println("\tk: " + m_KValue);
+
+            // Above the sample size, the MSU is estimated on a stratified sample
+            // of the rows of the node; the splits always use all of them
+            int[] msuRows = rows;
+            int msuBegin = begin;
+            int msuEnd = end;
+            if (m_MsuSampleSize > 0 && end - begin > m_MsuSampleSize) {
+                msuRows = store.stratifiedSample(rows, begin, end, m_MsuSampleSize, node.m_Random);
+                msuBegin = 0;
+                msuEnd = msuRows.length;
+            }
+
+            // Columns of the node are computed only when they are used
+            Scratch scratch = Scratch.acquire(store.numColumns(), attIndicesWindow.length);
+            int[][] msuData = scratch.m_MsuData;
+            int[] msuCardinalities = store.isDiscretized() ? store.getCardinalities() : scratch.m_MsuCardinalities;
+            double[][] msuCutPoints = scratch.m_MsuCutPoints;
+            int[] msuLabels = store.labels(msuRows, msuBegin, msuEnd);
+            int[] msuColumns = store.getColumns();
+            double[] msuWeights = null;
+            if (m_WeightedMSU) {
+                msuWeights = new double[msuEnd - msuBegin];
+                for (int i = msuBegin; i < msuEnd; i++) {
+                    msuWeights[i - msuBegin] = weights[msuRows[i]];
+                }
+            }
+            // The joint configuration of the ancestors is encoded once for all the candidates,
+            // extending the one of the parent with its split attribute if it is available
+            MSUEvaluator msuEvaluator;
+            if (node.m_MsuHistograms != null && msuRows == rows) {
+                int splitColumn = msuSubset[msuSubset.length - 1];
+                msuColumn(store, splitColumn, rows, begin, end, msuLabels, msuData, msuCardinalities, msuCutPoints);
+                int[] msuParentIds = new int[end - begin];
+                for (int i = begin; i < end; i++) {
+                    msuParentIds[i - begin] = m_MsuAncestorIds[rows[i]];
+                }
+                msuEvaluator = new MSUEvaluator(msuParentIds, node.m_MsuNumParentIds, msuData[splitColumn],
+                        msuLabels, msuWeights, node.m_MsuHistograms, classProbs.length);
+            } else {
+                int[][] msuAncestorCodes = new int[msuSubset == null ? 0 : msuSubset.length][];
+                for (int i = 0; i < msuAncestorCodes.length; i++) {
+                    if (msuData[msuSubset[i]] == null) {
+                        msuColumn(store, msuSubset[i], msuRows, msuBegin, msuEnd, msuLabels, msuData,
+                                msuCardinalities, msuCutPoints);
+                    }
+                    msuAncestorCodes[i] = msuData[msuSubset[i]];
+                }
+                msuEvaluator = new MSUEvaluator(msuAncestorCodes, msuLabels, msuWeights, classProbs.length);
+            }
+
+            // Candidates are drawn ahead of their evaluation, so that all the ones
+            // that are sure to be investigated are scored together, in a single
+            // pass or in parallel, and then compared in the order they were drawn
+            Candidates candidates = new Candidates(scratch, store, msuRows, msuBegin, msuEnd, msuColumns,
+                    msuLabels, msuEvaluator);
+            boolean parallel = m_NodeParallelThreshold > 0 && end - begin >= m_NodeParallelThreshold;
+            SplitSearch search = new SplitSearch(node, scratch, candidates, attIndicesWindow, parallel);
+            if (search.m_WindowSize > 0) {
+                search.draw(Math.max(1, Math.min(m_KValue, search.m_WindowSize)));
+            }
+
+            // The open nodes of a level keep their candidates but give the
+            // buffers back, so the level holds one set of them per thread. The
+            // columns a node discretizes on its own live in those buffers, so
+            // its candidates are scored now
+            if (m_LevelWise) {
+                if (!store.isDiscretized() && search.m_NumDrawn > 0) {
+                    search.evaluate(0, search.m_NumDrawn);
+                }
+                search.detachScratch();
+            }
+
+            return search;
+        }
+
+        /**
+         * Investigates the candidates of a node once its first ones are
+         * scored, drawing and scoring more of them while no useful split is
+         * found, then chooses the split of the node and partitions its rows
+         * among its successors, without building them.
+         *
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param search the search opened for the node
+         * @param tasks the list where the successors built as separate tasks
+         * are added
+         * @return the successors left to build, or null if the node is a leaf
+         * @throws Exception if generation fails
+         */
+        private List<Node> closeNode(MSUColumnStore store, double[] weights, int[] rows, SplitSearch search,
+                List<ForkJoinTask<Void>> tasks) throws Exception {
+            Node node = search.m_Node;
+            int begin = node.m_Begin;
+            int end = node.m_End;
+            double[] classProbs = node.m_ClassProbs;
+            int[] attIndicesWindow = search.m_AttIndicesWindow;
+            if (search.m_NodeScratch == null) {
+                search.attachScratch(Scratch.acquire(store.numColumns(), attIndicesWindow.length));
+            }
+            Random random = node.m_Random;
+            int depth = node.m_Depth;
+            int[] msuSubset = node.m_MsuSubset;
+            Candidates candidates = search.m_Candidates;
+            MSUEvaluator msuEvaluator = candidates.m_MsuEvaluator;
+            int[] msuColumns = candidates.m_MsuColumns;
+
+            // Compute class distributions and value of splitting
+            // criterion for each attribute
+            double val = -Double.MAX_VALUE;
+            int bestIndex = 0;
+            int bestCandidate = -1;
+
+            // Investigate K random attributes
+            int attIndex = 0;
+            int k = m_KValue;
+            boolean gainFound = false;
+
+            int arrayIndexNewAttribute = msuSubset == null ? 0 : msuSubset.length;
+            int[] msuTrialSubset = ClassificationDatasetAdapter.extendMsuSubset(msuSubset);
+            int[] msuNewSelectedSubset = msuTrialSubset.clone();
+            if (debug) System.out.println("\tmsu new selected subset: " + Arrays.toString(msuNewSelectedSubset));
+            if (debug) System.out.println("\tmsu trial subset: " + Arrays.toString(msuTrialSubset));
+
+            // The first candidates were drawn and scored before, so the first
+            // iteration only investigates them
+            int numInvestigated = 0;
+            while ((search.m_WindowSize > 0 || numInvestigated < search.m_NumDrawn) && (k-- > 0 || !gainFound)) {
+                if (numInvestigated == search.m_NumDrawn) {
+                    int numBatch = Math.max(1, Math.min(k + 1, search.m_WindowSize));
+                    search.draw(numBatch);
+                    search.evaluate(search.m_NumDrawn - numBatch, search.m_NumDrawn);
+                }
+
+                int candidate = numInvestigated++;
+                attIndex = candidates.m_Attributes[candidate];
+                double currVal = candidates.m_Values[candidate];
+                msuTrialSubset[arrayIndexNewAttribute] = msuColumns[attIndex];
+                if (debug) System.out.println("\t\tvalue: " + val);
+                if (debug) System.out.println("\t\tcurrent value: " + currVal);
+                if (Utils.gr(currVal, 0)) {
+                    gainFound = true;
+                }
+
+                if ((currVal > val)
+                        || ((!getBreakTiesRandomly()) && (currVal == val) && (attIndex < bestIndex))) {
+                    val = currVal;
+                    bestIndex = attIndex;
+                    bestCandidate = candidate;
+                    msuNewSelectedSubset[arrayIndexNewAttribute] = msuTrialSubset[arrayIndexNewAttribute];
+                    if (debug) System.out.println("\t\tMSU new selected subset: " + Arrays.toString(msuNewSelectedSubset));
+                }
+            }
+
+            
+            // The successors can extend the MSU state of this node if it was
+            // computed from all its rows and the store codes do not depend on them
+            double[][] msuNodeHistograms = null;
+            if (m_MsuAncestorIds != null && candidates.m_MsuRows == rows && bestCandidate >= 0) {
+                msuNodeHistograms = Arrays.copyOf(msuEvaluator.getHistograms(), msuEvaluator.getHistograms().length + 1);
+                msuNodeHistograms[msuNodeHistograms.length - 1] = candidates.m_Histograms[bestCandidate];
+            }
+
+            // Splitting on bins is only allowed over the data discretized once
+            double[] msuSplitCutPoints = null;
+            if (bestCandidate >= 0 && m_SplitOnBins) {
+                msuSplitCutPoints = store.getCutPoints(msuColumns[bestIndex]);
+            }
+
+            // Taking into account that it's a recurive process, prepare to free memory through GC  
+            search.m_NodeScratch.release(msuSubset, msuColumns, candidates.m_Attributes, search.m_NumDrawn);
+            candidates = null;
+            search = null;
+
+            // Find best attribute
+            m_Attribute = bestIndex;
+            if (debug) System.out.println("Best attribute: " + m_Attribute);
+            //System.exit(-1);
+            // Any useful split found?
+            if (Utils.gr(val, 0)) {
+                if (debug) System.out.println("\t\tinner node");
+                
+                if (m_computeImpurityDecreases) {
+                    // Subtrees may be built at the same time
+                    synchronized (m_impurityDecreasees) {
+                        m_impurityDecreasees[m_Attribute][0] += val;
+                        m_impurityDecreasees[m_Attribute][1]++;
+                    }
+                }
+
+                // Candidates are ranked by MSU only, so the split point and the
+                // class distributions are computed for the chosen attribute alone
+                double[][] props = new double[1][0];
+                double[][][] dists = new double[1][0][0];
+                double split;
+                if (m_SplitOnBins && store.getInfo().attribute(m_Attribute).isNumeric()) {
+                    split = binDistribution(props, dists, m_Attribute, msuSplitCutPoints, store, weights, rows,
+                            begin, end);
+                } else {
+                    split = distribution(props, dists, m_Attribute, store, weights, rows, begin, end);
+                }
+                double[][] bestDists = dists[0];
+
+                // Build subtrees over the slices of the successors, which only
+                // condition on the most recent attributes if the order is bounded
+                int msuNumIds = 0;
+                if (msuNodeHistograms != null && msuNewSelectedSubset.length
+                        == ClassificationDatasetAdapter.truncateMsuSubset(msuNewSelectedSubset, m_MsuMaxOrder).length) {
+                    int[] msuIds = msuEvaluator.getAncestorIds();
+                    for (int i = begin; i < end; i++) {
+                        m_MsuAncestorIds[rows[i]] = msuIds[i - begin];
+                    }
+                    msuNumIds = msuEvaluator.getNumAncestorIds();
+                } else {
+                    msuNodeHistograms = null;
+                }
+                msuEvaluator = null;
+                msuNewSelectedSubset = ClassificationDatasetAdapter.truncateMsuSubset(msuNewSelectedSubset, m_MsuMaxOrder);
+                m_SplitPoint = split;
+                m_Prop = props[0];
+                int[] bounds = store.partition(rows, begin, end, m_Attribute, m_SplitPoint, m_Prop);
+                m_Successors = new RandomTreeMSU.Tree[bestDists.length];
+                double[][][] msuSuccessorHistograms = new double[bestDists.length][][];
+                // Only the marginal histograms are passed on; the joint tables
+                // of the candidates are counted again at every successor
+                if (msuNodeHistograms != null) {
+                    msuSuccessorHistograms = successorHistograms(store, weights, rows, bounds, msuNewSelectedSubset,
+                            msuNodeHistograms);
+                }
+                
+                if (m_SubtreeParallelThreshold > 0) {
+                    return buildSuccessorsInParallel(store, weights, rows, bounds, bestDists, attIndicesWindow,
+                            random, depth, msuNewSelectedSubset, msuSuccessorHistograms, msuNumIds, tasks);
+                }
+                List<Node> successors = new ArrayList<Node>(bestDists.length);
+                for (int i = 0; i < bestDists.length; i++) {
+                    if (debug) System.out.println("\t\t\tsubtree i=" + i + " MSU new selected subset: " + Arrays.toString(msuNewSelectedSubset));
+                    m_Successors[i] = new RandomTreeMSU.Tree();
+                    successors.add(new Node((RandomTreeMSU.Tree) m_Successors[i], bounds[i], bounds[i + 1],
+                            bestDists[i], attIndicesWindow, random, depth + 1, msuNewSelectedSubset,
+                            msuSuccessorHistograms[i], msuNumIds));
+                }
+                return successors;
+            } else {
+                if (debug) System.out.println("\t\tleaf node");
+                // Make leaf
+                m_Attribute = -1;
+                m_ClassDistribution = classProbs.clone();
+                return null;
+            }
+        }
+
+        /**
+         * Builds the successors of a node, each one with its own random number
+         * generator and attribute window. Successors with enough instances are
+         * built as fork-join tasks, the rest in the current thread. Since the
+         * seeds of the successors are drawn in order, the tree only depends on
+         * the seed of the classifier.
+         *
+         * @return the successors to build in the current thread
+         */
+        private List<Node> buildSuccessorsInParallel(final MSUColumnStore store, final double[] weights,
+                final int[] rows, int[] bounds, double[][] dists, int[] attIndicesWindow,
+                Random random, int depth, int[] msuSubset, double[][][] msuHistograms, int msuNumParentIds,
+                List<ForkJoinTask<Void>> tasks) {
+            List<Node> inline = new ArrayList<Node>();
+
+            for (int i = 0; i < dists.length; i++) {
+                final RandomTreeMSU.Tree successor = new RandomTreeMSU.Tree();
+                final Node node = new Node(successor, bounds[i], bounds[i + 1], dists[i],
+                        attIndicesWindow.clone(), new Random(random.nextLong()), depth + 1, msuSubset,
+                        msuHistograms[i], msuNumParentIds);
+                m_Successors[i] = successor;
+
+                if (bounds[i + 1] - bounds[i] >= m_SubtreeParallelThreshold) {
+                    tasks.add(ForkJoinTask.adapt(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            successor.build(store, weights, rows, node);
+                            return null;
+                        }
+                    }).fork());
+                } else {
+                    inline.add(node);
+                }
+            }
+
+            return inline;
+        }
+
+        /**
+         * A node waiting to be built, with the state it receives from its
+         * parent.
+         */
+        private class Node {
+
+            private final RandomTreeMSU.Tree m_Tree;
+            private final int m_Begin;
+            private final int m_End;
+            private final double[] m_ClassProbs;
+            private final int[] m_AttIndicesWindow;
+            private final Random m_Random;
+            private final int m_Depth;
+            private final int[] m_MsuSubset;
+            private final double[][] m_MsuHistograms;
+            private final int m_MsuNumParentIds;
+
+            private Node(RandomTreeMSU.Tree tree, int begin, int end, double[] classProbs,
+                    int[] attIndicesWindow, Random random, int depth, int[] msuSubset,
+                    double[][] msuHistograms, int msuNumParentIds) {
+                m_Tree = tree;
+                m_Begin = begin;
+                m_End = end;
+                m_ClassProbs = classProbs;
+                m_AttIndicesWindow = attIndicesWindow;
+                m_Random = random;
+                m_Depth = depth;
+                m_MsuSubset = msuSubset;
+                m_MsuHistograms = msuHistograms;
+                m_MsuNumParentIds = msuNumParentIds;
+            }
+        }
+
+        /**
+         * The search for the split of a node, from the drawing of its first
+         * candidates to the choice of the split, so that the first candidates
+         * of all the nodes of a level can be scored before any of them is
+         * split.
+         */
+        private class SplitSearch {
+
+            private final Node m_Node;
+            private Scratch m_NodeScratch;
+            private final Candidates m_Candidates;
+            private final int[] m_AttIndicesWindow;
+            private final boolean m_Parallel;
+            private int m_WindowSize;
+            private int m_NumDrawn = 0;
+
+            private SplitSearch(Node node, Scratch scratch, Candidates candidates, int[] attIndicesWindow,
+                    boolean parallel) {
+                m_Node = node;
+                m_NodeScratch = scratch;
+                m_Candidates = candidates;
+                m_AttIndicesWindow = attIndicesWindow;
+                m_Parallel = parallel;
+                m_WindowSize = attIndicesWindow.length;
+            }
+
+            /**
+             * Draws the next candidates out of the attribute window, without
+             * scoring them.
+             */
+            private void draw(int numBatch) {
+                for (int b = 0; b < numBatch; b++) {
+                    if (debug) System.out.println("\twindow size=" + m_WindowSize + " (>0)");
+                    int chosenIndex = m_Node.m_Random.nextInt(m_WindowSize);
+                    if (debug) System.out.println("\t\tchosen index: " + chosenIndex + ", att indices window: " + Arrays.toString(m_AttIndicesWindow));
+                    int attIndex = m_AttIndicesWindow[chosenIndex];
+                    if (debug) System.out.println("\t\tatt index: " + attIndex);
+                    // shift chosen attIndex out of window
+                    m_AttIndicesWindow[chosenIndex] = m_AttIndicesWindow[m_WindowSize - 1];
+                    m_AttIndicesWindow[m_WindowSize - 1] = attIndex;
+                    if (debug) System.out.println("\t\tatt indices window: " + Arrays.toString(m_AttIndicesWindow));
+                    m_WindowSize--;
+                    if (debug) System.out.println("\t\twindow size: " + m_WindowSize);
+                    m_Candidates.m_Attributes[m_NumDrawn + b] = attIndex;
+                }
+                m_NumDrawn += numBatch;
+            }
+
+            /**
+             * Keeps the candidates drawn so far out of the buffers of the
+             * scratch, and frees them.
+             */
+            private void detachScratch() {
+                m_Candidates.detach(m_NumDrawn);
+                m_NodeScratch.release(m_Node.m_MsuSubset, m_Candidates.m_MsuColumns, m_Candidates.m_Attributes,
+                        m_NumDrawn);
+                m_NodeScratch = null;
+            }
+
+            /**
+             * Moves the candidates drawn so far back into the buffers of a
+             * scratch.
+             */
+            private void attachScratch(Scratch scratch) {
+                m_Candidates.attach(scratch, m_NumDrawn);
+                m_NodeScratch = scratch;
+            }
+
+            /**
+             * Scores the candidates in [from, to), in parallel if the node is
+             * large enough.
+             */
+            private void evaluate(int from, int to) {
+                if (m_Parallel && to - from > 1) {
+                    m_Candidates.evaluateInParallel(from, to);
+                } else {
+                    m_Candidates.evaluate(from, to);
+                }
+            }
+        }
+
+        /**
+         * Computes the MSU histograms of the successors of a node: the class
+         * and the ancestors of the node followed by its split attribute. Those
+         * of the smaller successors are gathered from their rows, and those of
+         * the largest one are the histograms of the node minus the rest. Only
+         * these marginal histograms are derived: the joint tables of the
+         * successors condition on the split attribute too, which the joint
+         * tables of the node do not, so they are counted again at every
+         * successor, over its ancestor ids extended by the split attribute.
+         */
+        private double[][][] successorHistograms(MSUColumnStore store, double[] weights, int[] rows,
+                int[] bounds, int[] msuSubset, double[][] histograms) {
+            int numSuccessors = bounds.length - 1;
+            int[] labels = store.labels();
+            double[][][] result = new double[numSuccessors][][];
+
+            int largest = 0;
+            for (int i = 1; i < numSuccessors; i++) {
+                if (bounds[i + 1] - bounds[i] > bounds[largest + 1] - bounds[largest]) {
+                    largest = i;
+                }
+            }
+
+            for (int i = 0; i < numSuccessors; i++) {
+                if (i == largest) {
+                    continue;
+                }
+                result[i] = new double[histograms.length][];
+                result[i][0] = new double[histograms[0].length];
+                for (int j = bounds[i]; j < bounds[i + 1]; j++) {
+                    result[i][0][labels[rows[j]]] += m_WeightedMSU ? weights[rows[j]] : 1;
+                }
+                for (int a = 0; a < msuSubset.length; a++) {
+                    int[] codes = store.column(msuSubset[a], rows, bounds[i], bounds[i + 1]);
+                    result[i][a + 1] = new double[histograms[a + 1].length];
+                    for (int j = bounds[i]; j < bounds[i + 1]; j++) {
+                        result[i][a + 1][codes[j - bounds[i]]] += m_WeightedMSU ? weights[rows[j]] : 1;
+                    }
+                }
+            }
+
+            result[largest] = new double[histograms.length][];
+            for (int h = 0; h < histograms.length; h++) {
+                result[largest][h] = histograms[h].clone();
+                for (int i = 0; i < numSuccessors; i++) {
+                    if (i != largest) {
+                        for (int v = 0; v < histograms[h].length; v++) {
+                            result[largest][h][v] -= result[i][h][v];
+                        }
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Computes the codes of an MSU column for the rows of a node, either
+         * from the discretized store or by discretizing them on their own, in
+         * which case the cut points are kept too.
+         */
+        private void msuColumn(MSUColumnStore store, int column, int[] rows, int begin, int end,
+                int[] msuLabels, int[][] msuData, int[] msuCardinalities, double[][] msuCutPoints) {
+            if (store.isDiscretized()) {
+                msuData[column] = store.column(column, rows, begin, end);
+            } else {
+                msuCutPoints[column] = store.cutPoints(column, rows, begin, end, msuLabels);
+                msuData[column] = new int[end - begin];
+                msuCardinalities[column] = store.discretize(column, rows, begin, end, msuCutPoints[column],
+                        msuData[column]);
+            }
+        }
 
-                if (data.classAttribute().isNumeric()) {
-                    m_Distribution = new double[2];
-                }
-                return;
+        /**
+         * The candidate attributes drawn at a node, with their MSU.
+         * Each candidate only writes its own entries, so disjoint ranges of
+         * candidates can be evaluated at the same time. The buffers of the
+         * candidates and of the MSU columns belong to a scratch, unless they
+         * are detached from it, in which case only the candidates drawn so
+         * far are kept, in arrays of their own.
+         */
+        private class Candidates {
+
+            private int[] m_Attributes;
+            private double[] m_Values;
+            private double[][] m_Histograms;
+
+            private final MSUColumnStore m_Store;
+            private final int[] m_MsuRows;
+            private final int m_MsuBegin;
+            private final int m_MsuEnd;
+            private final int[] m_MsuColumns;
+            private final int[] m_MsuLabels;
+            private int[][] m_MsuData;
+            private int[] m_MsuCardinalities;
+            private double[][] m_MsuCutPoints;
+            private final MSUEvaluator m_MsuEvaluator;
+
+            private Candidates(Scratch scratch, MSUColumnStore store, int[] msuRows, int msuBegin,
+                    int msuEnd, int[] msuColumns, int[] msuLabels, MSUEvaluator msuEvaluator) {
+                m_Store = store;
+                m_MsuRows = msuRows;
+                m_MsuBegin = msuBegin;
+                m_MsuEnd = msuEnd;
+                m_MsuColumns = msuColumns;
+                m_MsuLabels = msuLabels;
+                m_MsuEvaluator = msuEvaluator;
+                useBuffers(scratch);
             }
 
-            double priorVar = 0;
-            if (data.classAttribute().isNumeric()) {
+            private void useBuffers(Scratch scratch) {
+                m_Attributes = scratch.m_Attributes;
+                m_Values = scratch.m_Values;
+                m_Histograms = scratch.m_Histograms;
+                m_MsuData = scratch.m_MsuData;
+                m_MsuCardinalities = m_Store.isDiscretized() ? m_Store.getCardinalities()
+                        : scratch.m_MsuCardinalities;
+                m_MsuCutPoints = scratch.m_MsuCutPoints;
+            }
 
-                // Compute prior variance
-                double totalSum = 0, totalSumSquared = 0, totalSumOfWeights = 0;
-                for (int i = 0; i < data.numInstances(); i++) {
-                    Instance inst = data.instance(i);
-                    totalSum += inst.classValue() * inst.weight();
-                    totalSumSquared
-                            += inst.classValue() * inst.classValue() * inst.weight();
-                    totalSumOfWeights += inst.weight();
-                }
-                priorVar = singleVariance(totalSum, totalSumSquared, totalSumOfWeights);
+            /**
+             * Copies the first candidates out of the buffers of the scratch.
+             */
+            private void detach(int numDrawn) {
+                m_Attributes = Arrays.copyOf(m_Attributes, numDrawn);
+                m_Values = Arrays.copyOf(m_Values, numDrawn);
+                m_Histograms = Arrays.copyOf(m_Histograms, numDrawn);
+                m_MsuData = null;
+                m_MsuCutPoints = null;
             }
 
-            // Check if node doesn't contain enough instances or is pure
-            // or maximum depth reached
-            if (data.classAttribute().isNominal()) {
-                totalWeight = Utils.sum(classProbs);
+            /**
+             * Copies the first candidates into the buffers of a scratch, and
+             * uses them from then on.
+             */
+            private void attach(Scratch scratch, int numDrawn) {
+                System.arraycopy(m_Attributes, 0, scratch.m_Attributes, 0, numDrawn);
+                System.arraycopy(m_Values, 0, scratch.m_Values, 0, numDrawn);
+                System.arraycopy(m_Histograms, 0, scratch.m_Histograms, 0, numDrawn);
+                useBuffers(scratch);
             }
-            // System.err.println("Total weight " + totalWeight);
-            // double sum = Utils.sum(classProbs);
-            if (totalWeight < 2 * m_MinNum
-                    || // Nominal case
-                    (data.classAttribute().isNominal() && Utils.eq(
-                    classProbs[Utils.maxIndex(classProbs)], Utils.sum(classProbs)))
 
-                    || // Numeric case
-                    (data.classAttribute().isNumeric() && priorVar / totalWeight < minVariance)
+            /**
+             * Evaluates the candidates in [from, to), scoring their MSU in a
+             * single pass over the rows. The codes of the data discretized
+             * once are read from the columns of the store.
+             */
+            private void evaluate(int from, int to) {
+                boolean discretized = m_Store.isDiscretized();
+                int[][] codes = new int[to - from][];
+                int[] cardinalities = new int[to - from];
+
+                for (int i = from; i < to; i++) {
+                    int column = m_MsuColumns[m_Attributes[i]];
+                    if (discretized) {
+                        codes[i - from] = m_Store.codes(column);
+                    } else {
+                        if (m_MsuData[column] == null) {
+                            msuColumn(m_Store, column, m_MsuRows, m_MsuBegin, m_MsuEnd, m_MsuLabels, m_MsuData,
+                                    m_MsuCardinalities, m_MsuCutPoints);
+                        }
+                        codes[i - from] = m_MsuData[column];
+                    }
+                    cardinalities[i - from] = m_MsuCardinalities[column];
+                }
 
-                    || // check tree depth
-                    ((getMaxDepth() > 0) && (depth >= getMaxDepth()))) {
+                double[][] histograms = new double[to - from][];
+                double[] values = discretized
+                        ? m_MsuEvaluator.symmetricalUncertainty(codes, m_MsuRows, m_MsuBegin, cardinalities,
+                                histograms)
+                        : m_MsuEvaluator.symmetricalUncertainty(codes, cardinalities, histograms);
+                System.arraycopy(values, 0, m_Values, from, to - from);
+                System.arraycopy(histograms, 0, m_Histograms, from, to - from);
+            }
 
-                // Make leaf
-                m_Attribute = -1;
-                m_ClassDistribution = classProbs.clone();
-                if (data.classAttribute().isNumeric()) {
-                    m_Distribution = new double[2];
-                    m_Distribution[0] = priorVar;
-                    m_Distribution[1] = totalWeight;
+            /**
+             * Evaluates the candidates in [from, to) with fork-join tasks, one
+             * per block of candidates.
+             */
+            private void evaluateInParallel(int from, int to) {
+                // Tasks go to the pool of the current thread, if any, such as
+                // the one of a forest that builds its trees as fork-join tasks
+                ForkJoinPool pool = ForkJoinTask.getPool();
+                int parallelism = pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+                int numTasks = Math.min(to - from, parallelism);
+                List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(numTasks);
+
+                for (int t = 0; t < numTasks; t++) {
+                    final int taskFrom = from + (to - from) * t / numTasks;
+                    final int taskTo = from + (to - from) * (t + 1) / numTasks;
+                    tasks.add(ForkJoinTask.adapt(new Runnable() {
+                        @Override
+                        public void run() {
+                            evaluate(taskFrom, taskTo);
+                        }
+                    }));
                 }
 
-                m_Prop = null;
-                return;
+                ForkJoinTask.invokeAll(tasks);
             }
+        }
 
-            // Compute class distributions and value of splitting
-            // criterion for each attribute
-            double val = -Double.MAX_VALUE;
-            double split = -Double.MAX_VALUE;
-            double[][] bestDists = null;
-            double[] bestProps = null;
-            int bestIndex = 0;
-
-            // Handles to get arrays out of distribution method
-            double[][] props = new double[1][0];
-            double[][][] dists = new double[1][0][0];
-            double[][] totalSubsetWeights = new double[data.numAttributes()][0];
+        /**
+         * Computes class distribution for an attribute over a slice of rows.
+         * Same as RandomTree.Tree.distribution, reading the values from the
+         * store instead of sorting the instances of the node.
+         *
+         * @param props
+         * @param dists
+         * @param att the attribute index
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param begin the first position of the node in the row indices
+         * @param end the position after the last one of the node
+         * @return the split point (numeric attributes only)
+         */
+        protected double distribution(double[][] props, double[][][] dists, int att,
+                MSUColumnStore store, double[] weights, int[] rows, int begin, int end) {
+
+            double splitPoint = Double.NaN;
+            Attribute attribute = store.getInfo().attribute(att);
+            int numClasses = store.getInfo().numClasses();
+            double[] values = store.values(att);
+            int[] labels = store.labels();
+            double[][] dist = null;
+            double[] missingDist = new double[numClasses];
+            boolean missingFound = false;
+
+            if (attribute.isNominal()) {
+
+                // For nominal attributes
+                dist = new double[attribute.numValues()][numClasses];
+                for (int i = begin; i < end; i++) {
+                    int row = rows[i];
+                    if (Utils.isMissingValue(values[row])) {
+                        missingDist[labels[row]] += weights[row];
+                        missingFound = true;
+                    } else {
+                        dist[(int) values[row]][labels[row]] += weights[row];
+                    }
+                }
+            } else {
 
-            // Investigate K random attributes
-            if (debug) System.out.println("==========================");
-            int attIndex = 0;
-            int windowSize = attIndicesWindow.length;
-            int k = m_KValue;
-            if (debug) System.out.println("\tatt indices window: " + Arrays.toString(attIndicesWindow));
-            if (debug) System.out.println("\twindow size: " + windowSize);
-            if (debug) System.out.println("\tk: " + k);
-            boolean gainFound = false;
-            double[] tempNumericVals = new double[data.numAttributes()];
+                // For numeric attributes
+                double[][] currDist = new double[2][numClasses];
+                dist = new double[2][numClasses];
+
+                // Sort the values of the node that are not missing
+                int numPresent = 0;
+                int[] presentRows = new int[end - begin];
+                double[] presentValues = new double[end - begin];
+                for (int i = begin; i < end; i++) {
+                    int row = rows[i];
+                    if (Utils.isMissingValue(values[row])) {
+                        missingDist[labels[row]] += weights[row];
+                        missingFound = true;
+                    } else {
+                        presentRows[numPresent] = row;
+                        presentValues[numPresent++] = values[row];
+                        currDist[1][labels[row]] += weights[row];
+                    }
+                }
+                if (numPresent < presentValues.length) {
+                    presentRows = Arrays.copyOf(presentRows, numPresent);
+                    presentValues = Arrays.copyOf(presentValues, numPresent);
+                }
+                int[] sortedIndices = Utils.sortWithNoMissingValues(presentValues);
 
-            ClassificationDataset msuClassificationDataset = ClassificationDatasetAdapter.newInstance(data);
-            int[][] msuData = MatrixUtils.transpose(msuClassificationDataset.getCategoricalData());
-            int arrayIndexNewAttribute = msuSubset == null ? 0 : msuSubset.length;
-            int[] msuTrialSubset = ClassificationDatasetAdapter.extendMsuSubset(msuSubset);
-            int[] msuNewSelectedSubset = msuTrialSubset.clone();
-            if (debug) System.out.println("\tmsu new selected subset: " + Arrays.toString(msuNewSelectedSubset));
-            if (debug) System.out.println("\tmsu trial subset: " + Arrays.toString(msuTrialSubset));
-            
-            int idx = 0;
-            while ((windowSize > 0) && (k-- > 0 || !gainFound)) {
-                if (debug) System.out.println("\twindow size=" + windowSize + " (>0), k=" + k + " (>0)");
-                int chosenIndex = random.nextInt(windowSize);
-                if (debug) System.out.println("\t\tchosen index: " + chosenIndex + ", att indices window: " + Arrays.toString(attIndicesWindow));
-                attIndex = attIndicesWindow[chosenIndex];
-                if (debug) System.out.println("\t\tatt index: " + attIndex);
-                // shift chosen attIndex out of window
-                attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
-                attIndicesWindow[windowSize - 1] = attIndex;
-                if (debug) System.out.println("\t\tatt indices window: " + Arrays.toString(attIndicesWindow));
-                windowSize--;
-                if (debug) System.out.println("\t\twindow size: " + windowSize);
-                
-                double currSplit
-                        = data.classAttribute().isNominal() ? distribution(props, dists,
-                        attIndex, data) : numericDistribution(props, dists, attIndex,
-                                totalSubsetWeights, data, tempNumericVals);
-
-                msuTrialSubset[arrayIndexNewAttribute] = ClassificationDatasetAdapter.findAttIndex(data.attribute(attIndex).name(),
-                        msuClassificationDataset.getCategoricalHeader());
-                if (debug) System.out.println("\t\tcurrent split: " + currSplit);
-                double currVal
-                        = data.classAttribute().isNominal()
-                        ? MultivariateStatUtils.symmetricalUncertainty(msuData,
-                                msuClassificationDataset.getCategoricalCardinalities(),
-                                msuTrialSubset,
-                                msuClassificationDataset.getLabels(),
-                                classProbs.length)
-                        : tempNumericVals[attIndex];
-                if (debug) System.out.println("\t\tvalue: " + val);
-                if (debug) System.out.println("\t\tcurrent value: " + currVal);
-                if (Utils.gr(currVal, 0)) {
-                    gainFound = true;
+                // Evaluate the split points between distinct values
+                double priorVal = priorVal(currDist);
+                for (int j = 0; j < currDist.length; j++) {
+                    System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
                 }
 
-                if ((currVal > val)
-                        || ((!getBreakTiesRandomly()) && (currVal == val) && (attIndex < bestIndex))) {
-                    val = currVal;
-                    bestIndex = attIndex;
-                    split = currSplit;
-                    bestProps = props[0];
-                    bestDists = dists[0];
-                    msuNewSelectedSubset[arrayIndexNewAttribute] = msuTrialSubset[arrayIndexNewAttribute];
-                    if (debug) System.out.println("\t\tMSU new selected subset: " + Arrays.toString(msuNewSelectedSubset));
+                double currSplit = numPresent > 0 ? presentValues[sortedIndices[0]] : Double.NaN;
+                double currVal, bestVal = -Double.MAX_VALUE;
+                for (int i = 0; i < numPresent; i++) {
+                    double value = presentValues[sortedIndices[i]];
+                    int row = presentRows[sortedIndices[i]];
+                    if (value > currSplit) {
+                        currVal = gain(currDist, priorVal);
+                        if (currVal > bestVal) {
+                            bestVal = currVal;
+                            splitPoint = (value + currSplit) / 2.0;
+
+                            // Check for numeric precision problems
+                            if (splitPoint <= currSplit) {
+                                splitPoint = value;
+                            }
+
+                            for (int j = 0; j < currDist.length; j++) {
+                                System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+                            }
+                        }
+                        currSplit = value;
+                    }
+                    currDist[0][labels[row]] += weights[row];
+                    currDist[1][labels[row]] -= weights[row];
                 }
             }
 
-            
-            // Taking into account that it's a recurive process, prepare to free memory through GC  
-            msuClassificationDataset = null;
-            msuData = null;
+            // Return distribution and split point
+            subsetWeights(props, dists, dist, missingDist, missingFound);
+            return splitPoint;
+        }
 
-            // Find best attribute
-            m_Attribute = bestIndex;
-            if (debug) System.out.println("Best attribute: " + m_Attribute);
-            //System.exit(-1);
-            // Any useful split found?
-            if (Utils.gr(val, 0)) {
-                if (debug) System.out.println("\t\tinner node");
-                
-                if (m_computeImpurityDecreases) {
-                    m_impurityDecreasees[m_Attribute][0] += val;
-                    m_impurityDecreasees[m_Attribute][1]++;
+        /**
+         * Computes class distribution for a numeric attribute over a slice of
+         * rows, splitting it on the best one of the given cut points. The
+         * class counts of every bin are gathered in a single pass, so no
+         * sorting is needed. If no cut point leaves rows on both sides, the
+         * split is searched as in distribution().
+         *
+         * @param props
+         * @param dists
+         * @param att the attribute index
+         * @param cutPoints the cut points of the attribute
+         * @param store the data of the tree
+         * @param weights the weight of every row of the store
+         * @param rows the row indices of the tree
+         * @param begin the first position of the node in the row indices
+         * @param end the position after the last one of the node
+         * @return the split point
+         */
+        protected double binDistribution(double[][] props, double[][][] dists, int att, double[] cutPoints,
+                MSUColumnStore store, double[] weights, int[] rows, int begin, int end) {
+
+            double splitPoint = Double.NaN;
+            int numClasses = store.getInfo().numClasses();
+            double[] values = store.values(att);
+            int[] labels = store.labels();
+            double[][] bins = new double[cutPoints.length + 1][numClasses];
+            double[][] currDist = new double[2][numClasses];
+            double[][] dist = null;
+            double[] missingDist = new double[numClasses];
+            boolean missingFound = false;
+
+            for (int i = begin; i < end; i++) {
+                int row = rows[i];
+                if (Utils.isMissingValue(values[row])) {
+                    missingDist[labels[row]] += weights[row];
+                    missingFound = true;
+                } else {
+                    bins[ClassificationDatasetAdapter.code(values[row], cutPoints)][labels[row]] += weights[row];
+                    currDist[1][labels[row]] += weights[row];
                 }
+            }
 
-                // Build subtrees
-                m_SplitPoint = split;
-                m_Prop = bestProps;
-                Instances[] subsets = splitData(data);
-                m_Successors = new RandomTreeMSU.Tree[bestDists.length];
-                double[] attTotalSubsetWeights = totalSubsetWeights[bestIndex];
-                
-                for (int i = 0; i < bestDists.length; i++) {
-                    if (debug) System.out.println("\t\t\tsubtree i=" + i + " MSU new selected subset: " + Arrays.toString(msuNewSelectedSubset));
-                    m_Successors[i] = new RandomTreeMSU.Tree();
-                    ((RandomTreeMSU.Tree) m_Successors[i]).buildTree(subsets[i], bestDists[i], attIndicesWindow,
-                            data.classAttribute().isNominal() ? 0 : attTotalSubsetWeights[i],
-                            random, depth + 1, minVariance, msuNewSelectedSubset);
+            // Evaluate the cut points, moving one bin at a time to the left
+            double priorVal = priorVal(currDist);
+            double currVal, bestVal = -Double.MAX_VALUE;
+            for (int j = 0; j < cutPoints.length; j++) {
+                for (int c = 0; c < numClasses; c++) {
+                    currDist[0][c] += bins[j][c];
+                    currDist[1][c] -= bins[j][c];
                 }
-
-                // If all successors are non-empty, we don't need to store the class
-                // distribution
-                boolean emptySuccessor = false;
-                for (int i = 0; i < subsets.length; i++) {
-                    if (m_Successors[i].m_ClassDistribution == null) {
-                        emptySuccessor = true;
-                        break;
-                    }
+                if (!Utils.gr(Utils.sum(currDist[0]), 0) || !Utils.gr(Utils.sum(currDist[1]), 0)) {
+                    continue;
                 }
-                if (emptySuccessor) {
-                    m_ClassDistribution = classProbs.clone();
+                currVal = gain(currDist, priorVal);
+                if (currVal > bestVal) {
+                    bestVal = currVal;
+                    splitPoint = cutPoints[j];
+                    dist = new double[][]{currDist[0].clone(), currDist[1].clone()};
+                }
+            }
+
+            if (dist == null) {
+                return distribution(props, dists, att, store, weights, rows, begin, end);
+            }
+
+            // Return distribution and split point
+            subsetWeights(props, dists, dist, missingDist, missingFound);
+            return splitPoint;
+        }
+
+        /**
+         * Computes the weight of every subset of a split from its class
+         * distribution, and distributes the instances with missing values
+         * among the subsets accordingly.
+         */
+        private void subsetWeights(double[][] props, double[][][] dists, double[][] dist,
+                double[] missingDist, boolean missingFound) {
+
+            // Compute weights for subsets
+            props[0] = new double[dist.length];
+            for (int k = 0; k < props[0].length; k++) {
+                props[0][k] = Utils.sum(dist[k]);
+            }
+            if (Utils.eq(Utils.sum(props[0]), 0)) {
+                for (int k = 0; k < props[0].length; k++) {
+                    props[0][k] = 1.0 / props[0].length;
                 }
             } else {
-                if (debug) System.out.println("\t\tleaf node");
-                // Make leaf
-                m_Attribute = -1;
-                m_ClassDistribution = classProbs.clone();
-                if (data.classAttribute().isNumeric()) {
-                    m_Distribution = new double[2];
-                    m_Distribution[0] = priorVar;
-                    m_Distribution[1] = totalWeight;
+                Utils.normalize(props[0]);
+            }
+
+            // Distribute weights for instances with missing values
+            if (missingFound) {
+                for (int j = 0; j < dist.length; j++) {
+                    for (int c = 0; c < missingDist.length; c++) {
+                        dist[j][c] += props[0][j] * missingDist[c];
+                    }
                 }
             }
+
+            dists[0] = dist;
         }
     }
 
     /**
-     * Adapter between Weka and MSU data structures
+     * Buffers used by a node while it is built, as large as the number of MSU
+     * columns or of candidate attributes. Every thread keeps one set of them
+     * for all the nodes and trees it builds, and only allocates new ones when
+     * a tree needs larger buffers.
      */
-    protected static class ClassificationDatasetAdapter implements Serializable {
+    protected static class Scratch {
 
-        private static final ClassificationDatasetAdapter adapter = new ClassificationDatasetAdapter();
+        /**
+         * Buffers of the current thread
+         */
+        private static final ThreadLocal<Scratch> s_Current = new ThreadLocal<Scratch>();
+
+        private final int[][] m_MsuData;
+        private final int[] m_MsuCardinalities;
+        private final double[][] m_MsuCutPoints;
+        private final int[] m_Attributes;
+        private final double[] m_Values;
+        private final double[][] m_Histograms;
+        private boolean m_InUse = false;
+
+        protected Scratch(int numColumns, int maxCandidates) {
+            m_MsuData = new int[numColumns][];
+            m_MsuCardinalities = new int[numColumns];
+            m_MsuCutPoints = new double[numColumns][];
+            m_Attributes = new int[maxCandidates];
+            m_Values = new double[maxCandidates];
+            m_Histograms = new double[maxCandidates][];
+        }
 
-        private ClassificationDatasetAdapter() {
+        /**
+         * Takes the buffers of the current thread. New ones replace them if
+         * they are too small, or taken by a node this thread left to help with
+         * another one, or never freed because a build failed.
+         */
+        private static Scratch acquire(int numColumns, int maxCandidates) {
+            Scratch scratch = s_Current.get();
+            if (scratch == null || scratch.m_InUse || scratch.m_MsuData.length < numColumns
+                    || scratch.m_Attributes.length < maxCandidates) {
+                scratch = new Scratch(numColumns, maxCandidates);
+                s_Current.set(scratch);
+            }
+            scratch.m_InUse = true;
+
+            return scratch;
         }
 
-        protected static ClassificationDataset newInstance(Instances instances) {
-            int[] categoricalLabels = new int[instances.size()];
-            int indexCategoricalLabels = 0;
-            String[] labelNames = null;
-            List<String> categoricalHeader = null;
-            List<String[]> categoricalValueNames = null;
-            List<List<Integer>> categoricalData = null;
-            List<String> numericHeader = null;
-            List<List<Double>> numericData = null;
-            boolean isFirstInstance = true;
-
-            for (Instance instance : instances) {
-                List<Integer> instanceCategoricalData = null;
-                List<Double> instanceNumericData = null;
-
-                if (isFirstInstance) {
-                    if (instance.classAttribute().isNominal()) {
-                        labelNames = adapter.toStringArray(instance.classAttribute().enumerateValues());
-                    } else {
-                        throw new UnsupportedOperationException("Only nominal class attributes are supported");
-                    }
+        /**
+         * Clears the entries a node has filled in, which are those of its
+         * ancestors and of the candidates it drew, and frees the buffers.
+         */
+        private void release(int[] msuSubset, int[] msuColumns, int[] attributes, int numDrawn) {
+            if (msuSubset != null) {
+                for (int column : msuSubset) {
+                    m_MsuData[column] = null;
+                    m_MsuCutPoints[column] = null;
+                }
+            }
+            for (int i = 0; i < numDrawn; i++) {
+                m_MsuData[msuColumns[attributes[i]]] = null;
+                m_MsuCutPoints[msuColumns[attributes[i]]] = null;
+                m_Histograms[i] = null;
+            }
+            m_InUse = false;
+        }
+    }
 
-                    Enumeration<Attribute> attributes = instance.enumerateAttributes();
-                    Attribute attribute;
-                    while (attributes.hasMoreElements()) {
-                        attribute = attributes.nextElement();
-                        if (attribute.isNominal()) {
-                            if (categoricalHeader == null) {
-                                categoricalHeader = new ArrayList<>();
-                            }
-                            if (categoricalValueNames == null) {
-                                categoricalValueNames = new ArrayList<>();
-                            }
-                            if (categoricalData == null) {
-                                categoricalData = new ArrayList<>();
-                            }
+    /**
+     * Adapter between Weka and MSU data structures
+     */
+    protected static class ClassificationDatasetAdapter implements Serializable {
 
-                            categoricalHeader.add(attribute.name());
-                            categoricalValueNames.add(adapter.toStringArray(attribute.enumerateValues()));
-                        } else if (attribute.isNumeric()) {
-                            if (numericHeader == null) {
-                                numericHeader = new ArrayList<>();
-                            }
-                            if (numericData == null) {
-                                numericData = new ArrayList<>();
-                            }
+        private ClassificationDatasetAdapter() {
+        }
 
-                            numericHeader.add(attribute.name());
-                        } else {
-                            throw new UnsupportedOperationException("Only nominal and numeric attributes are supported");
-                        }
-                    }
+        /**
+         * Converts the instances into a column store. Nominal attributes come
+         * first, followed by the numeric ones, and every column is written
+         * straight into a primitive array. If requested, the numeric columns
+         * are discretized via Fayyad-Irani.
+         *
+         * @param instances the instances to convert
+         * @param discretize whether the MSU columns are discretized
+         * @return the column store
+         */
+        protected static MSUColumnStore newColumnStore(Instances instances, boolean discretize) {
+            if (!instances.classAttribute().isNominal()) {
+                throw new UnsupportedOperationException("Only nominal class attributes are supported");
+            }
 
-                    isFirstInstance = false;
+            int numInstances = instances.numInstances();
+            int classIndex = instances.classIndex();
+            int numNominal = 0;
+            int numNumeric = 0;
+            for (int i = 0; i < instances.numAttributes(); i++) {
+                if (i == classIndex) {
+                    continue;
                 }
-
-                if (categoricalHeader != null && instanceCategoricalData == null) {
-                    instanceCategoricalData = new ArrayList<>();
+                Attribute attribute = instances.attribute(i);
+                if (attribute.isNominal()) {
+                    numNominal++;
+                } else if (attribute.isNumeric()) {
+                    numNumeric++;
+                } else {
+                    throw new UnsupportedOperationException("Only nominal and numeric attributes are supported");
                 }
+            }
 
-                if (numericHeader != null && instanceNumericData == null) {
-                    instanceNumericData = new ArrayList<>();
+            // MSU columns: nominal attributes first, then the numeric ones
+            int[] attributes = new int[numNominal + numNumeric];
+            String[] header = new String[attributes.length];
+            double[][] values = new double[instances.numAttributes()][];
+            int nominalColumn = 0;
+            int numericColumn = numNominal;
+            for (int i = 0; i < instances.numAttributes(); i++) {
+                if (i == classIndex) {
+                    continue;
                 }
+                int column = instances.attribute(i).isNominal() ? nominalColumn++ : numericColumn++;
+                attributes[column] = i;
+                header[column] = instances.attribute(i).name();
+                values[i] = new double[numInstances];
+            }
 
-                double[] instanceAttributesValues = instance.toDoubleArray();
-                for (int i = 0; i < instanceAttributesValues.length; i++) {
-                    if (i == instance.classIndex()) {
-                        categoricalLabels[indexCategoricalLabels++] = (int) instanceAttributesValues[i];
-                    } else if (instance.attribute(i).isNominal()) {
-                        instanceCategoricalData.add((int) instanceAttributesValues[i]);
+            int[] labels = new int[numInstances];
+            for (int row = 0; row < numInstances; row++) {
+                Instance instance = instances.instance(row);
+                for (int i = 0; i < values.length; i++) {
+                    if (i == classIndex) {
+                        labels[row] = (int) instance.value(i);
                     } else {
-                        instanceNumericData.add(instanceAttributesValues[i]);
+                        values[i][row] = instance.value(i);
                     }
                 }
-
-                if (instanceCategoricalData != null) {
-                    categoricalData.add(instanceCategoricalData);
-                }
-
-                if (instanceNumericData != null) {
-                    numericData.add(instanceNumericData);
-                }
             }
 
-            ClassificationDataset dataset = new ClassificationDataset();
-            dataset.setLabels(categoricalLabels);
-            dataset.setLabelNames(labelNames);
-            if (categoricalData != null && numericData == null) {
-                dataset.setDataType(DataType.CATEGORICAL);
-
-                dataset.setCategoricalHeader(adapter.toStringArray(categoricalHeader));
-                dataset.setCategoricalValueNames(adapter.toStringMatrix(categoricalValueNames));
-                dataset.setCategoricalData(adapter.toIntegerMatrix(categoricalData));
-            } else if (categoricalData == null && numericData != null) {
-                dataset.setDataType(DataType.NUMERICAL);
-
-                dataset.setNumericalHeader(adapter.toStringArray(numericHeader));
-                dataset.setNumericalData(adapter.toDoubleMatrix(numericData));
-
-                dataset = adapter.discretize(dataset);
-            } else {
-                dataset.setDataType(DataType.NUMERICAL_CATEGORICAL);
-
-                dataset.setCategoricalHeader(adapter.toStringArray(categoricalHeader));
-                dataset.setCategoricalData(adapter.toIntegerMatrix(categoricalData));
-                dataset.setCategoricalValueNames(adapter.toStringMatrix(categoricalValueNames));
-
-                dataset.setNumericalHeader(adapter.toStringArray(numericHeader));
-                dataset.setNumericalData(adapter.toDoubleMatrix(numericData));
-
-                dataset = adapter.discretize(dataset);
+            int[][] codes = null;
+            int[] cardinalities = null;
+            double[][] cutPoints = null;
+            if (discretize) {
+                codes = new int[attributes.length][];
+                cardinalities = new int[attributes.length];
+                cutPoints = new double[attributes.length][];
+                for (int column = 0; column < attributes.length; column++) {
+                    double[] columnValues = values[attributes[column]];
+                    codes[column] = new int[numInstances];
+                    if (column < numNominal) {
+                        for (int row = 0; row < numInstances; row++) {
+                            codes[column][row] = (int) columnValues[row];
+                        }
+                        cardinalities[column] = instances.attribute(attributes[column]).numValues();
+                    } else if (numInstances > 0) {
+                        cutPoints[column] = cutPoints(columnValues, labels);
+                        discretize(columnValues, cutPoints[column], codes[column]);
+                        cardinalities[column] = cutPoints[column].length + 1;
+                    } else {
+                        cardinalities[column] = 1;
+                    }
+                }
             }
 
-            return dataset;
+            return new MSUColumnStore(instances, values, attributes, codes, cutPoints, cardinalities, header,
+                    labels);
         }
 
-        protected static int findAttIndex(String attName, String[] categoricalHeader) {
-            for (int i = 0; i < categoricalHeader.length; i++) {
-                if (attName.equals(categoricalHeader[i])) {
-                    return i;
-                }
+        /**
+         * Keeps the most recent attributes of an MSU subset.
+         *
+         * @param msuSubset the subset, in the order the attributes were
+         * selected
+         * @param maxOrder the maximum number of attributes, 0 for no limit
+         * @return the last maxOrder attributes of the subset
+         */
+        protected static int[] truncateMsuSubset(int[] msuSubset, int maxOrder) {
+            if (maxOrder <= 0 || msuSubset.length <= maxOrder) {
+                return msuSubset;
             }
 
-            throw new RuntimeException("Attribute not found while looking for MSU equivalent");
+            return Arrays.copyOfRange(msuSubset, msuSubset.length - maxOrder, msuSubset.length);
         }
 
         protected static int[] extendMsuSubset(int[] msuSubset) {
@@ -548,85 +1977,179 @@ public class RandomTreeMSU extends RandomTree {
             return msuNewSubset;
         }
 
-        private ClassificationDataset discretize(ClassificationDataset dataset) {
+        /**
+         * Computes the Fayyad-Irani cut points of a column, sorting it as the
+         * MSU library does.
+         *
+         * @param values the values of the column
+         * @param labels the class labels of the rows
+         * @return the cut points
+         */
+        protected static double[] cutPoints(double[] values, int[] labels) {
+            int[] sortedIndices = ArrayUtils.sort(values);
+            double[] sortedValues = new double[values.length];
+            int[] sortedLabels = new int[values.length];
+            for (int i = 0; i < sortedIndices.length; i++) {
+                sortedValues[i] = values[sortedIndices[i]];
+                sortedLabels[i] = labels[sortedIndices[i]];
+            }
+
+            double[] cutPoints;
             try {
-                if (dataset.getDataType().equals(DataType.NUMERICAL)) {
-                    return DatasetUtils.dicretizeNumericalDatasetViaFayyad(dataset);
-                } else {
-                    return DatasetUtils.dicretizeMixedDatasetViaFayyad(dataset);
-                }
+                // An empty row sets up the number of classes without discretizing anything
+                MDLBasedDiscretization discretization = new FayyadIranisDiscretization(new double[1][0], labels);
+                cutPoints = discretization.calculateCutPoints(sortedValues, sortedLabels, 0, values.length);
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
-        }
 
-        private int[][] toIntegerMatrix(List<List<Integer>> data) {
-            int[][] result = new int[data.size()][];
-            int rowIndex = 0;
-            int columnIndex;
+            return cutPoints == null ? new double[]{Double.POSITIVE_INFINITY} : cutPoints;
+        }
 
-            for (List<Integer> row : data) {
-                columnIndex = 0;
-                result[rowIndex] = new int[row.size()];
+        /**
+         * Replaces every value by the number of cut points it reaches.
+         *
+         * @param values the values of the column
+         * @param cutPoints the cut points
+         * @param codes the array where the codes are written
+         */
+        protected static void discretize(double[] values, double[] cutPoints, int[] codes) {
+            for (int i = 0; i < values.length; i++) {
+                codes[i] = code(values[i], cutPoints);
+            }
+        }
 
-                for (Integer columnValue : row) {
-                    result[rowIndex][columnIndex++] = columnValue;
+        /**
+         * Returns the number of cut points a value reaches, by binary search.
+         *
+         * @param value the value
+         * @param cutPoints the cut points, in increasing order
+         * @return the code of the value
+         */
+        protected static int code(double value, double[] cutPoints) {
+            int low = 0;
+            int high = cutPoints.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (value >= cutPoints[middle]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
                 }
-
-                rowIndex++;
             }
 
-            return result;
+            return low;
         }
 
-        private double[][] toDoubleMatrix(List<List<Double>> data) {
-            double[][] result = new double[data.size()][];
-            int rowIndex = 0;
-            int columnIndex;
+    }
 
-            for (List<Double> row : data) {
-                columnIndex = 0;
-                result[rowIndex] = new double[row.size()];
+    /**
+     * Builds classifier. The training set is prepared as in
+     * RandomTree.buildClassifier(), backfitting included, and the tree is
+     * grown over a column store of it.
+     *
+     * @param data the data to train with
+     * @throws Exception if something goes wrong or the data doesn't fit
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        setUpBuild(data);
 
-                for (Double columnValue : row) {
-                    result[rowIndex][columnIndex++] = columnValue;
-                }
+        // remove instances with missing class
+        data = new Instances(data);
+        data.deleteWithMissingClass();
 
-                rowIndex++;
-            }
+        if (buildZeroR(data)) {
+            return;
+        }
 
-            return result;
+        // Figure out appropriate datasets
+        Instances train = data;
+        Instances backfit = null;
+        Random rand = data.getRandomNumberGenerator(m_randomSeed);
+        if (m_NumFolds > 0) {
+            data.randomize(rand);
+            data.stratify(m_NumFolds);
+            train = data.trainCV(m_NumFolds, 1, rand);
+            backfit = data.testCV(m_NumFolds, 1);
+        }
+
+        // Compute initial class counts
+        double totalWeight = 0;
+        double[] classProbs = new double[train.numClasses()];
+        for (Instance instance : train) {
+            classProbs[(int) instance.classValue()] += instance.weight();
+            totalWeight += instance.weight();
         }
 
-        private String[][] toStringMatrix(List<String[]> data) {
-            String[][] result = new String[data.size()][];
+        int[] attIndicesWindow = startTree(data);
+        buildTree(train, classProbs, attIndicesWindow, totalWeight, rand, 0);
 
-            for (int i = 0; i < data.size(); i++) {
-                result[i] = data.get(i);
-            }
+        // Backfit if required
+        if (backfit != null) {
+            m_Tree.backfitData(backfit);
+        }
+    }
 
-            return result;
+    /**
+     * Allocates the impurity decreases, brings K into range and checks the
+     * data, as RandomTree.buildClassifier() does before any tree is built.
+     */
+    private void setUpBuild(Instances data) throws Exception {
+        if (m_computeImpurityDecreases) {
+            m_impurityDecreasees = new double[data.numAttributes()][2];
         }
 
-        private String[] toStringArray(Enumeration<Object> values) {
-            List<String> stringList = new ArrayList<>();
+        // Make sure K value is in range
+        if (m_KValue > data.numAttributes() - 1) {
+            m_KValue = data.numAttributes() - 1;
+        }
+        if (m_KValue < 1) {
+            m_KValue = (int) Utils.log2(data.numAttributes() - 1) + 1;
+        }
 
-            while (values.hasMoreElements()) {
-                stringList.add((String) values.nextElement());
-            }
+        // can classifier handle the data?
+        getCapabilities().testWithFail(data);
+    }
 
-            return toStringArray(stringList);
+    /**
+     * Builds a ZeroR model instead of a tree if the class is the only
+     * attribute.
+     *
+     * @return true if the ZeroR model was built
+     */
+    private boolean buildZeroR(Instances data) throws Exception {
+        if (data.numAttributes() == 1) {
+            System.err.println("Cannot build model (only class attribute present in data!), "
+                    + "using ZeroR model instead!");
+            m_zeroR = new weka.classifiers.rules.ZeroR();
+            m_zeroR.buildClassifier(data);
+            return true;
         }
 
-        private String[] toStringArray(List<String> stringList) {
-            String[] stringArray = new String[stringList.size()];
-            for (int i = 0; i < stringArray.length; i++) {
-                stringArray[i] = stringList.get(i);
-            }
+        m_zeroR = null;
+        return false;
+    }
 
-            return stringArray;
+    /**
+     * Creates the root of the tree and the header of the data.
+     *
+     * @return the attribute window, with every attribute but the class
+     */
+    private int[] startTree(Instances data) {
+        int[] attIndicesWindow = new int[data.numAttributes() - 1];
+        int j = 0;
+        for (int i = 0; i < attIndicesWindow.length; i++) {
+            if (j == data.classIndex()) {
+                j++; // do not include the class
+            }
+            attIndicesWindow[i] = j++;
         }
 
+        m_Tree = getTree();
+        m_Info = new Instances(data, 0);
+
+        return attIndicesWindow;
     }
 
     protected Tree getTree() {
@@ -637,8 +2160,101 @@ public class RandomTreeMSU extends RandomTree {
      * first call*
      */
     protected void buildTree(Instances train, double[] classProbs, int[] attIndicesWindow, double totalWeight, Random rand, double trainVariance) throws Exception {
-        ((RandomTreeMSU.Tree) m_Tree).buildTree(train, classProbs, attIndicesWindow, totalWeight, rand, 0,
-                m_MinVarianceProp * trainVariance, null);
+        MSUColumnStore store;
+        int[] rows;
+
+        if (m_SharedStore != null && m_SharedRows.length == train.numInstances()) {
+            store = m_SharedStore;
+            rows = m_SharedRows.clone();
+        } else {
+            store = MSUColumnStore.newInstance(train, m_DiscretizeOnce);
+            rows = new int[train.numInstances()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+        }
+
+        m_SharedStore = null;
+        m_SharedRows = null;
+
+        // Weight of every row of the store in this training set
+        double[] weights = new double[store.numRows()];
+        for (int i = 0; i < rows.length; i++) {
+            weights[rows[i]] = train.instance(i).weight();
+        }
+
+        buildTree(store, weights, rows, classProbs, attIndicesWindow, rand);
+    }
+
+    /**
+     * Builds the tree over the given rows of a store.
+     */
+    private void buildTree(MSUColumnStore store, double[] weights, int[] rows, double[] classProbs,
+            int[] attIndicesWindow, Random rand) throws Exception {
+        if (m_SplitOnBins && !store.isDiscretized()) {
+            throw new IllegalArgumentException("Splitting on bins needs the data to be discretized once "
+                    + "(-discretize-once)");
+        }
+        if (store.isDiscretized()) {
+            m_MsuAncestorIds = new int[store.numRows()];
+        }
+        try {
+            ((RandomTreeMSU.Tree) m_Tree).buildTree(store, weights, rows, 0, rows.length, classProbs,
+                    attIndicesWindow, rand, 0, null);
+        } finally {
+            m_MsuAncestorIds = null;
+        }
+    }
+
+    /**
+     * Builds the classifier on a bootstrap sample given as the number of
+     * copies of every instance, without materializing it: every instance
+     * drawn is a row of the store weighted by its number of copies. The tree
+     * is the same as the one built from the bag of the instances drawn,
+     * represented using weights, in their original order.
+     *
+     * @param data the instances the store was built from
+     * @param store the data of the tree, shared by the forest
+     * @param counts the number of copies of every instance in the sample
+     * @throws Exception if the classifier could not be built successfully
+     */
+    public void buildClassifier(Instances data, MSUColumnStore store, int[] counts) throws Exception {
+        int numRows = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                numRows++;
+            }
+        }
+        int[] rows = new int[numRows];
+        double[] weights = new double[store.numRows()];
+        double[] classProbs = new double[data.numClasses()];
+        int[] labels = store.labels();
+        numRows = 0;
+        for (int row = 0; row < counts.length; row++) {
+            if (counts[row] > 0) {
+                rows[numRows++] = row;
+                weights[row] = counts[row];
+                classProbs[labels[row]] += counts[row];
+            }
+        }
+
+        setUpBuild(data);
+        if (buildZeroR(data)) {
+            return;
+        }
+        if (numRows == 0) {
+            // Same tree as for an empty bag
+            buildClassifier(new Instances(data, 0));
+            return;
+        }
+
+        // As Instances.getRandomNumberGenerator() on the bag
+        long seed = m_randomSeed;
+        Random rand = new Random(seed);
+        rand.setSeed(data.instance(rows[rand.nextInt(numRows)]).toStringNoWeight().hashCode() + seed);
+
+        int[] attIndicesWindow = startTree(data);
+        buildTree(store, weights, rows, classProbs, attIndicesWindow, rand);
     }
 
     /**
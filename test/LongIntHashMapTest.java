@@ -0,0 +1,92 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    LongIntHashMapTest.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests LongIntHashMap against java.util.HashMap.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class LongIntHashMapTest {
+
+    /**
+     * Draws a key: mostly small ones that repeat, as the pairs of MSU ids, but
+     * also any long, negative ones included.
+     */
+    private static long key(Random random) {
+        return random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(5000) * 7L - 100;
+    }
+
+    /**
+     * The map keeps the first value of every key, across the rehashes of a
+     * map created too small, and finds no value for the keys never added.
+     */
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(1);
+        LongIntHashMap map = new LongIntHashMap(1);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+        for (int i = 0; i < 20000; i++) {
+            long key = key(random);
+            Integer value = expected.get(key);
+            assertEquals("Key " + key, value == null ? LongIntHashMap.NO_ENTRY : value.intValue(),
+                    map.putIfAbsent(key, i));
+            if (value == null) {
+                expected.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (int i = 0; i < 20000; i++) {
+            long key = key(random);
+            Integer value = expected.get(key);
+            assertEquals("Key " + key, value == null ? LongIntHashMap.NO_ENTRY : value.intValue(), map.get(key));
+        }
+    }
+
+    /**
+     * A cleared map is empty and can be filled again.
+     */
+    @Test
+    public void testClear() {
+        LongIntHashMap map = new LongIntHashMap(8);
+        for (long key = 0; key < 100; key++) {
+            map.putIfAbsent(key, (int) key);
+        }
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(LongIntHashMap.NO_ENTRY, map.get(42));
+        assertEquals(LongIntHashMap.NO_ENTRY, map.putIfAbsent(42, 1));
+        assertEquals(1, map.get(42));
+        assertEquals(1, map.size());
+    }
+}
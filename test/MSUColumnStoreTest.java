@@ -0,0 +1,83 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    MSUColumnStoreTest.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests MSUColumnStore.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class MSUColumnStoreTest {
+
+    /**
+     * A stratified sample of a slice holds distinct rows of the slice, in
+     * increasing order, and every class keeps its share of the sample size,
+     * with at least one row and at most all of its rows. The same seed draws
+     * the same sample.
+     */
+    @Test
+    public void testStratifiedSample() {
+        Instances data = MSUTestData.synthetic(1000, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data, false);
+        int[] rows = new int[data.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (7 * i) % rows.length;
+        }
+        int begin = 100;
+        int end = 900;
+
+        int[] classCounts = new int[data.numClasses()];
+        boolean[] inSlice = new boolean[data.numInstances()];
+        for (int i = begin; i < end; i++) {
+            classCounts[store.labels()[rows[i]]]++;
+            inSlice[rows[i]] = true;
+        }
+
+        for (int sampleSize : new int[]{1, 10, 250, 799}) {
+            int[] sample = store.stratifiedSample(rows, begin, end, sampleSize, new Random(sampleSize));
+            assertArrayEquals(sample, store.stratifiedSample(rows, begin, end, sampleSize, new Random(sampleSize)));
+
+            int[] sampleCounts = new int[data.numClasses()];
+            for (int i = 0; i < sample.length; i++) {
+                assertTrue("Row " + sample[i] + " is not in the slice", inSlice[sample[i]]);
+                assertTrue("Rows not increasing", i == 0 || sample[i - 1] < sample[i]);
+                sampleCounts[store.labels()[sample[i]]]++;
+            }
+            for (int c = 0; c < classCounts.length; c++) {
+                int quota = (int) Math.round((double) sampleSize * classCounts[c] / (end - begin));
+                assertEquals("Sample size " + sampleSize + ", class " + c + " of " + Arrays.toString(classCounts),
+                        Math.min(classCounts[c], Math.max(1, quota)), sampleCounts[c]);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    MSUEvaluatorTest.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import upo.jcu.math.stat.MultivariateStatUtils;
+import weka.core.Utils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests MSUEvaluator against MultivariateStatUtils, the MSU of the library
+ * it replaces.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class MSUEvaluatorTest {
+
+    private static final int NUM_LABELS = 3;
+
+    /**
+     * Draws the codes of an attribute.
+     */
+    private static int[] codes(Random random, int numRows, int cardinality) {
+        int[] codes = new int[numRows];
+        for (int i = 0; i < numRows; i++) {
+            codes[i] = random.nextInt(cardinality);
+        }
+        return codes;
+    }
+
+    /**
+     * Computes the MSU of some ancestors plus a candidate with the library.
+     */
+    private static double libraryMsu(int[][] ancestors, int[] ancestorCardinalities, int[] candidate,
+            int candidateCardinality, int[] labels) throws Exception {
+        int[][] data = Arrays.copyOf(ancestors, ancestors.length + 1);
+        data[ancestors.length] = candidate;
+        int[] cardinalities = Arrays.copyOf(ancestorCardinalities, ancestors.length + 1);
+        cardinalities[ancestors.length] = candidateCardinality;
+        int[] subset = new int[data.length];
+        for (int i = 0; i < subset.length; i++) {
+            subset[i] = i;
+        }
+        return MultivariateStatUtils.symmetricalUncertainty(data, cardinalities, subset, labels, NUM_LABELS);
+    }
+
+    /**
+     * The MSU is the one of the library at the root, under few ancestor
+     * configurations, where the joint counts are dense, and under more
+     * configurations than rows, where they are numbered through the hash map.
+     */
+    @Test
+    public void testMatchesLibrary() throws Exception {
+        Random random = new Random(1);
+        int numRows = 200;
+        int[] labels = codes(random, numRows, NUM_LABELS);
+
+        for (int[] ancestorCardinalities : new int[][]{{}, {3}, {2, 4}, {10, 10, 10}, {20, 5, 30, 2}}) {
+            int[][] ancestors = new int[ancestorCardinalities.length][];
+            for (int i = 0; i < ancestors.length; i++) {
+                ancestors[i] = codes(random, numRows, ancestorCardinalities[i]);
+            }
+            MSUEvaluator evaluator = new MSUEvaluator(ancestors, labels, NUM_LABELS);
+
+            for (int cardinality : new int[]{2, 4, 50}) {
+                int[] candidate = codes(random, numRows, cardinality);
+                assertEquals("Ancestors " + Arrays.toString(ancestorCardinalities) + ", candidate " + cardinality,
+                        libraryMsu(ancestors, ancestorCardinalities, candidate, cardinality, labels),
+                        evaluator.symmetricalUncertainty(candidate, cardinality), 1e-12);
+            }
+        }
+    }
+
+    /**
+     * Codes that never appear do not change the MSU, so a candidate given a
+     * larger cardinality than it has, which moves its joint counts from the
+     * dense table to the hash map, scores exactly the same.
+     */
+    @Test
+    public void testSparseCountsMatchDense() {
+        Random random = new Random(2);
+        int numRows = 300;
+        int[] labels = codes(random, numRows, NUM_LABELS);
+        int[][] ancestors = {codes(random, numRows, 3), codes(random, numRows, 4)};
+        MSUEvaluator evaluator = new MSUEvaluator(ancestors, labels, NUM_LABELS);
+
+        for (int cardinality : new int[]{2, 5, 20}) {
+            int[] candidate = codes(random, numRows, cardinality);
+            // 12 ancestor configurations at most, times the cardinality, fit
+            // in a dense table of up to 300 entries
+            assertEquals("Candidate " + cardinality, evaluator.symmetricalUncertainty(candidate, cardinality),
+                    evaluator.symmetricalUncertainty(candidate, 1000), 0);
+        }
+    }
+
+    /**
+     * Repeats every row of some codes as many times as its weight.
+     */
+    private static int[] expand(int[] codes, double[] weights) {
+        int[] result = new int[(int) Utils.sum(weights)];
+        int numRows = 0;
+        for (int i = 0; i < codes.length; i++) {
+            for (int k = 0; k < weights[i]; k++) {
+                result[numRows++] = codes[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The weighted MSU of a bag where every instance drawn appears once,
+     * weighted by its number of copies, is the MSU of the bag with the
+     * copies, under dense and sparse joint counts alike.
+     */
+    @Test
+    public void testWeightedMatchesExpanded() {
+        Random random = new Random(3);
+        int numRows = 150;
+        int[] labels = codes(random, numRows, NUM_LABELS);
+        double[] weights = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            weights[i] = 1 + random.nextInt(3);
+        }
+
+        for (int[] ancestorCardinalities : new int[][]{{}, {3}, {10, 10, 10}}) {
+            int[][] ancestors = new int[ancestorCardinalities.length][];
+            int[][] expandedAncestors = new int[ancestors.length][];
+            for (int i = 0; i < ancestors.length; i++) {
+                ancestors[i] = codes(random, numRows, ancestorCardinalities[i]);
+                expandedAncestors[i] = expand(ancestors[i], weights);
+            }
+            MSUEvaluator weighted = new MSUEvaluator(ancestors, labels, weights, NUM_LABELS);
+            MSUEvaluator expanded = new MSUEvaluator(expandedAncestors, expand(labels, weights), NUM_LABELS);
+
+            for (int cardinality : new int[]{2, 4, 50}) {
+                int[] candidate = codes(random, numRows, cardinality);
+                assertEquals("Ancestors " + Arrays.toString(ancestorCardinalities) + ", candidate " + cardinality,
+                        expanded.symmetricalUncertainty(expand(candidate, weights), cardinality),
+                        weighted.symmetricalUncertainty(candidate, cardinality), 0);
+            }
+        }
+    }
+}
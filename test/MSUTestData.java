@@ -0,0 +1,84 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    MSUTestData.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic data sets for the tests of RandomTreeMSU and RandomForestMSU.
+ * They only depend on the seed, so the trees built on them can be compared
+ * with the ones built by earlier versions of the code.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class MSUTestData {
+
+    private MSUTestData() {
+    }
+
+    /**
+     * Generates a data set with six numeric attributes, with one decimal
+     * digit so that values repeat, and four nominal ones. The class has three
+     * values, given by thresholds on the sum of the first two numeric
+     * attributes, twice the first nominal one and some noise.
+     *
+     * @param numInstances the number of instances
+     * @param seed the seed of the values
+     * @return the data set, with the class as the last attribute
+     */
+    public static Instances synthetic(int numInstances, long seed) {
+        int numNumeric = 6;
+        int numNominal = 4;
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int i = 0; i < numNumeric; i++) {
+            attributes.add(new Attribute("n" + i));
+        }
+        for (int i = 0; i < numNominal; i++) {
+            attributes.add(new Attribute("c" + i, Arrays.asList("a", "b", "c", "d")));
+        }
+        attributes.add(new Attribute("class", Arrays.asList("x", "y", "z")));
+
+        Instances data = new Instances("synthetic", attributes, numInstances);
+        data.setClassIndex(attributes.size() - 1);
+        Random random = new Random(seed);
+        for (int k = 0; k < numInstances; k++) {
+            double[] values = new double[attributes.size()];
+            for (int i = 0; i < numNumeric; i++) {
+                values[i] = Math.round(random.nextGaussian() * 100) / 10.0;
+            }
+            for (int i = 0; i < numNominal; i++) {
+                values[numNumeric + i] = random.nextInt(4);
+            }
+            double sum = values[0] + values[1] + 2 * values[numNumeric] + random.nextGaussian();
+            values[attributes.size() - 1] = sum < 0 ? 0 : (sum < 4 ? 1 : 2);
+            data.add(new DenseInstance(1.0, values));
+        }
+
+        return data;
+    }
+}
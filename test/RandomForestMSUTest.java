@@ -0,0 +1,246 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    RandomForestMSUTest.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import org.junit.Test;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests RandomForestMSU.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class RandomForestMSUTest {
+
+  /**
+   * Exposes the bags drawn by a forest.
+   */
+  private static class BagDrawer extends RandomForestMSU {
+
+    private static final long serialVersionUID = 2470716393861563735L;
+
+    private int[] drawBag(Instances data, long seed, double bagSizePercent) {
+      m_data = data;
+      return drawBag(new Random(seed), bagSizePercent);
+    }
+  }
+
+  private static RandomForestMSU forest(String options) throws Exception {
+    RandomForestMSU forest = new RandomForestMSU();
+    forest.setOptions(Utils.splitOptions(options));
+    return forest;
+  }
+
+  private static RandomForestMSU build(String options, Instances data) throws Exception {
+    RandomForestMSU forest = forest(options);
+    forest.buildClassifier(data);
+    return forest;
+  }
+
+  private static void assertSameDistributions(String message, Classifier expected, Classifier actual,
+    Instances data) throws Exception {
+    for (Instance instance : data) {
+      assertArrayEquals(message, expected.distributionForInstance(instance),
+        actual.distributionForInstance(instance), 0);
+    }
+  }
+
+  /**
+   * The bags drawn with the alias method are the ones Bagging draws with
+   * Instances.resampleWithWeights(), instance by instance and in the same
+   * order, also for weighted instances and smaller bags, so the rows of the
+   * shared store given to a tree are those of its bag.
+   */
+  @Test
+  public void testDrawBagMatchesResampleWithWeights() throws Exception {
+    Instances data = MSUTestData.synthetic(300, 1);
+    Random random = new Random(3);
+    for (Instance instance : data) {
+      instance.setWeight(0.5 + random.nextDouble() * 2);
+    }
+
+    for (double bagSizePercent : new double[] { 100, 60 }) {
+      for (long seed = 1; seed <= 5; seed++) {
+        int[] draws = new BagDrawer().drawBag(data, seed, bagSizePercent);
+        Instances bag = data.resampleWithWeights(new Random(seed), new boolean[data.numInstances()], false,
+          bagSizePercent);
+        assertEquals(bag.numInstances(), draws.length);
+        for (int k = 0; k < draws.length; k++) {
+          assertEquals("Draw " + k + " of seed " + seed, bag.instance(k).toStringNoWeight(),
+            data.instance(draws[k]).toStringNoWeight());
+        }
+      }
+    }
+  }
+
+  /**
+   * Trees built from the counts of their bags are the ones built from copies
+   * of the bags, with a single thread as with several.
+   */
+  @Test
+  public void testIndexBaggingMatchesBags() throws Exception {
+    Instances data = MSUTestData.synthetic(400, 1);
+    Instances test = MSUTestData.synthetic(200, 2);
+
+    for (String options : new String[] { "-I 10", "-I 10 -shared-discretization -discretize-once" }) {
+      RandomForestMSU expected = build(options, data);
+      for (String bagging : new String[] { " -index-bagging", " -index-bagging -num-slots 2" }) {
+        assertSameDistributions("Options \"" + options + bagging + "\"", expected, build(options + bagging, data),
+          test);
+      }
+    }
+  }
+
+  /**
+   * Building the trees as fork-join tasks, in a pool of the forest or in the
+   * one shared by all the forests, gives the default forest.
+   */
+  @Test
+  public void testPoolsMatchDefault() throws Exception {
+    Instances data = MSUTestData.synthetic(400, 1);
+    Instances test = MSUTestData.synthetic(200, 2);
+
+    for (String options : new String[] { "-I 10", "-I 10 -shared-discretization -discretize-once" }) {
+      RandomForestMSU expected = build(options, data);
+      for (String pool : new String[] { " -fork-join", " -fork-join -num-slots 2",
+        " -shared-pool", " -shared-pool -shared-pool-size 2" }) {
+        assertSameDistributions("Options \"" + options + pool + "\"", expected, build(options + pool, data),
+          test);
+      }
+    }
+  }
+
+  /**
+   * Forests that ask for shared pools of different sizes all build their
+   * trees in the pool created first, so the threads of a single pool are
+   * ever started.
+   */
+  @Test
+  public void testSharedPoolIsNeverReplaced() throws Exception {
+    Instances data = MSUTestData.synthetic(200, 1);
+    Instances test = MSUTestData.synthetic(100, 2);
+    RandomForestMSU expected = build("-I 4", data);
+
+    for (int size : new int[] { 1, 2, 3, 1, 2 }) {
+      assertSameDistributions("Size " + size, expected, build("-I 4 -shared-pool -shared-pool-size " + size, data),
+        test);
+    }
+
+    Set<String> pools = new HashSet<String>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      if (name.startsWith("RandomForestMSU-")) {
+        pools.add(name.substring(0, name.lastIndexOf("-worker-")));
+      }
+    }
+    assertEquals(pools.toString(), 1, pools.size());
+  }
+
+  /**
+   * Adding trees to a forest built with a warm start gives the forest built
+   * with as many iterations, out-of-bag error included, also after the
+   * forest stopped growing early.
+   */
+  @Test
+  public void testWarmStartMatchesLargerForest() throws Exception {
+    Instances data = MSUTestData.synthetic(400, 1);
+    Instances test = MSUTestData.synthetic(200, 2);
+
+    for (String options : new String[] { "-O", "-O -shared-discretization -discretize-once" }) {
+      RandomForestMSU forest = build("-I 10 -warm-start " + options, data);
+      forest.addTrees(3);
+      forest.addTrees(2);
+      RandomForestMSU expected = build("-I 15 " + options, data);
+
+      assertEquals(15, forest.getNumIterations());
+      assertSameDistributions("Options \"" + options + "\"", expected, forest, test);
+      assertEquals(expected.measureOutOfBagError(), forest.measureOutOfBagError(), 0);
+    }
+
+    RandomForestMSU forest = build("-I 100 -oob-window 3 -oob-tolerance 0.01 -warm-start", data);
+    int numTrees = forest.getNumTreesBuilt();
+    forest.addTrees(2);
+    assertEquals(numTrees + 2, forest.getNumTreesBuilt());
+    assertSameDistributions("After an early stop", build("-I " + (numTrees + 2), data), forest, test);
+  }
+
+  /**
+   * A forest only stops growing on a stable out-of-bag error once every
+   * instance has been out of bag and the window is full after that. It keeps
+   * its number of iterations, and the trees kept do not depend on the number
+   * of threads.
+   */
+  @Test
+  public void testOobWindowWaitsForAllInstancesOutOfBag() throws Exception {
+    Instances data = MSUTestData.synthetic(400, 1);
+    Instances test = MSUTestData.synthetic(200, 2);
+    RandomForestMSU forest = build("-I 100 -oob-window 3 -oob-tolerance 0.01", data);
+
+    boolean[] outOfBag = new boolean[data.numInstances()];
+    int numOutOfBag = 0;
+    int numTreesToCover = 0;
+    while (numOutOfBag < outOfBag.length) {
+      boolean[] inBag = new boolean[data.numInstances()];
+      for (int draw : new BagDrawer().drawBag(data, forest.getSeed() + numTreesToCover, 100)) {
+        inBag[draw] = true;
+      }
+      for (int i = 0; i < inBag.length; i++) {
+        if (!inBag[i] && !outOfBag[i]) {
+          outOfBag[i] = true;
+          numOutOfBag++;
+        }
+      }
+      numTreesToCover++;
+    }
+
+    int numTrees = forest.getNumTreesBuilt();
+    assertTrue(numTrees + " trees kept, " + numTreesToCover + " to have every instance out of bag",
+      numTrees >= numTreesToCover - 1 + 3);
+    assertTrue(numTrees + " trees kept", numTrees < 100);
+    assertEquals(100, forest.getNumIterations());
+    assertEquals("100", Utils.getOption('I', forest.getOptions()));
+    assertEquals(numTrees, forest.getMeasure("measureNumTreesBuilt"), 0);
+    assertTrue(forest.toString().contains("Number of trees built: " + numTrees + " of 100"));
+
+    RandomForestMSU threads = build("-I 100 -oob-window 3 -oob-tolerance 0.01 -num-slots 3", data);
+    assertEquals(numTrees, threads.getNumTreesBuilt());
+    assertSameDistributions("-num-slots 3", forest, threads, test);
+
+    forest.buildClassifier(data);
+    assertEquals(numTrees, forest.getNumTreesBuilt());
+    forest.setOobWindow(0);
+    forest.buildClassifier(data);
+    assertEquals(100, forest.getNumTreesBuilt());
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+ /*
+ *    RandomTreeMSUTest.java
+ *    Copyright (C) 2023-2023 University Pablo de Olavide, Seville, Spain
+ *
+ */
+package weka.classifiers.trees;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests RandomTreeMSU.
+ *
+ * @author Miguel Garcia Torres (mgarciat@upo.es)
+ * @version $Revision$
+ */
+public class RandomTreeMSUTest {
+
+    /**
+     * Options of the trees that must be the same as the ones built before the
+     * column store, and the hash codes of their descriptions then, on 600
+     * synthetic instances with seed 1.
+     */
+    private static final Object[][] BASELINE = {
+        {"", -2033004775},
+        {"-K 1", -499518167},
+        {"-M 5 -depth 4", 1735590788},
+        {"-S 7", -272980580},
+    };
+
+    /**
+     * Options of the build modes that must keep the class distribution of
+     * every leaf equal to the instances that reach it.
+     */
+    private static final String[] MODES = {
+        "",
+        "-discretize-once",
+        "-discretize-once -K 1",
+        "-discretize-once -weighted-msu",
+        "-discretize-once -msu-max-order 2",
+        "-msu-sample-size 100",
+        "-discretize-once -msu-sample-size 100",
+        "-discretize-once -split-on-bins",
+        "-level-wise",
+        "-discretize-once -level-wise",
+        "-discretize-once -node-parallel-threshold 50 -subtree-parallel-threshold 50",
+    };
+
+    private static RandomTreeMSU build(String options, Instances data) throws Exception {
+        RandomTreeMSU tree = new RandomTreeMSU();
+        tree.setOptions(Utils.splitOptions(options));
+        tree.buildClassifier(data);
+        return tree;
+    }
+
+    /**
+     * Builds a tree as a task of a pool with several threads, so that the
+     * fork-join tasks of the tree run in parallel even on a single processor.
+     */
+    private static RandomTreeMSU buildInPool(final String options, final Instances data) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            return pool.submit(new Callable<RandomTreeMSU>() {
+                @Override
+                public RandomTreeMSU call() throws Exception {
+                    return build(options, data);
+                }
+            }).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the synthetic data with a copy of its first attribute, which
+     * always ties with it.
+     */
+    private static Instances withTies(Instances data) {
+        Instances result = new Instances(data);
+        result.insertAttributeAt(new Attribute("n0copy"), 1);
+        for (Instance instance : result) {
+            instance.setValue(1, instance.value(0));
+        }
+        return result;
+    }
+
+    /**
+     * The default trees, which now grow over the column store, are the same as
+     * the ones the code built before it.
+     */
+    @Test
+    public void testDefaultTreesMatchBaseline() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+
+        for (Object[] baseline : BASELINE) {
+            String options = (String) baseline[0];
+            assertEquals("Options \"" + options + "\"", baseline[1],
+                    build(options, data).toString().hashCode());
+        }
+    }
+
+    /**
+     * Every leaf holds the class distribution of the training instances that
+     * reach it. A store that read its rows from instances sorted while the
+     * tree grows sends them down the wrong branches, which breaks this.
+     */
+    @Test
+    public void testLeavesHoldTheirInstances() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+
+        for (String options : MODES) {
+            RandomTreeMSU tree = build(options, data);
+            Map<RandomTree.Tree, double[]> reached = new IdentityHashMap<RandomTree.Tree, double[]>();
+            for (Instance instance : data) {
+                RandomTree.Tree node = tree.m_Tree;
+                while (node.m_Attribute >= 0) {
+                    node = node.m_Successors[branch(node, instance)];
+                }
+                double[] counts = reached.get(node);
+                if (counts == null) {
+                    counts = new double[data.numClasses()];
+                    reached.put(node, counts);
+                }
+                counts[(int) instance.classValue()] += instance.weight();
+            }
+            checkLeaves(options, tree.m_Tree, reached);
+        }
+    }
+
+    private static void checkLeaves(String options, RandomTree.Tree node, Map<RandomTree.Tree, double[]> reached) {
+        if (node.m_Attribute >= 0) {
+            for (RandomTree.Tree successor : node.m_Successors) {
+                checkLeaves(options, successor, reached);
+            }
+        } else if (node.m_ClassDistribution == null) {
+            assertNull("Options \"" + options + "\": instances reach an empty leaf", reached.get(node));
+        } else {
+            assertArrayEquals("Options \"" + options + "\"", node.m_ClassDistribution, reached.get(node), 1e-9);
+        }
+    }
+
+    /**
+     * When every attribute is a candidate, every node of a tree over the data
+     * discretized once splits on the attribute of highest MSU over the rows
+     * that reach it, computed here from scratch. A store whose codes are not
+     * those of its rows picks other attributes.
+     */
+    @Test
+    public void testDiscretizeOnceSplitsOnBestMsu() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data, true);
+        int[] rows = new int[data.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+
+        // Bounded, since a tree that splits on codes of other rows may never stop
+        for (String options : new String[]{"-K 100 -depth 10 -discretize-once",
+                "-K 100 -depth 10 -discretize-once -split-on-bins",
+                "-K 100 -depth 10 -discretize-once -level-wise"}) {
+            checkSplits(options, build(options, data).m_Tree, data, store, rows, new int[0], 0, 0);
+        }
+    }
+
+    /**
+     * With a bounded MSU order, every node splits on the attribute of
+     * highest MSU conditioned only on the most recent ancestors.
+     */
+    @Test
+    public void testMsuMaxOrderSplitsOnBestMsu() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data, true);
+        int[] rows = new int[data.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+
+        for (int maxOrder = 1; maxOrder <= 3; maxOrder++) {
+            String options = "-K 100 -depth 10 -discretize-once -msu-max-order " + maxOrder;
+            checkSplits(options, build(options, data).m_Tree, data, store, rows, new int[0], maxOrder, 0);
+        }
+    }
+
+    private static void checkSplits(String options, RandomTree.Tree node, Instances data, MSUColumnStore store,
+            int[] rows, int[] ancestors, int maxOrder, int sampleSize) {
+        if (node.m_Attribute < 0) {
+            return;
+        }
+
+        int first = maxOrder > 0 ? Math.max(0, ancestors.length - maxOrder) : 0;
+        int[][] ancestorCodes = new int[ancestors.length - first][];
+        for (int i = first; i < ancestors.length; i++) {
+            ancestorCodes[i - first] = store.column(ancestors[i], rows, 0, rows.length);
+        }
+        MSUEvaluator evaluator = new MSUEvaluator(ancestorCodes, store.labels(rows, 0, rows.length),
+                data.numClasses());
+        int best = -1;
+        double bestValue = -Double.MAX_VALUE;
+        for (int att = 0; att < data.numAttributes(); att++) {
+            if (att == data.classIndex()) {
+                continue;
+            }
+            int column = store.getColumns()[att];
+            double value = evaluator.symmetricalUncertainty(store.column(column, rows, 0, rows.length),
+                    store.getCardinalities()[column]);
+            if (value > bestValue) {
+                best = att;
+                bestValue = value;
+            }
+        }
+        // Nodes scored on a sample may choose another attribute
+        if (sampleSize == 0 || rows.length <= sampleSize) {
+            assertEquals("Options \"" + options + "\": split of a node of " + rows.length + " rows", best,
+                    node.m_Attribute);
+        }
+
+        int[] successorAncestors = Arrays.copyOf(ancestors, ancestors.length + 1);
+        successorAncestors[ancestors.length] = store.getColumns()[node.m_Attribute];
+        for (int branch = 0; branch < node.m_Successors.length; branch++) {
+            int[] successorRows = new int[rows.length];
+            int numRows = 0;
+            for (int row : rows) {
+                if (branch(node, data.instance(row)) == branch) {
+                    successorRows[numRows++] = row;
+                }
+            }
+            checkSplits(options, node.m_Successors[branch], data, store, Arrays.copyOf(successorRows, numRows),
+                    successorAncestors, maxOrder, sampleSize);
+        }
+    }
+
+    private static int branch(RandomTree.Tree node, Instance instance) {
+        double value = instance.value(node.m_Attribute);
+        if (instance.attribute(node.m_Attribute).isNominal()) {
+            return (int) value;
+        }
+        return value < node.m_SplitPoint ? 0 : 1;
+    }
+
+    /**
+     * Scoring the candidates of a node in parallel gives the tree scored
+     * sequentially, since they are still compared in the order they were
+     * drawn: ties between an attribute and its copy go the same way.
+     */
+    @Test
+    public void testNodeParallelMatchesSequential() throws Exception {
+        Instances data = withTies(MSUTestData.synthetic(600, 1));
+
+        for (String options : new String[]{"", "-K 3", "-discretize-once", "-discretize-once -K 100"}) {
+            assertEquals("Options \"" + options + "\"", build(options, data).toString(),
+                    buildInPool(options + " -node-parallel-threshold 1", data).toString());
+        }
+    }
+
+    /**
+     * Subtrees built as tasks draw from random number generators seeded in
+     * order by their parents, so the tree only depends on the seed: not on
+     * which subtrees are forked, nor on the threads that build them.
+     */
+    @Test
+    public void testSubtreeParallelIsReproducible() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+
+        for (String options : new String[]{"-subtree-parallel-threshold",
+            "-discretize-once -subtree-parallel-threshold"}) {
+            String expected = build(options + " 100000", data).toString();
+            for (int threshold : new int[]{1, 20, 200}) {
+                for (int i = 0; i < 3; i++) {
+                    assertEquals("Options \"" + options + " " + threshold + "\"", expected,
+                            buildInPool(options + " " + threshold, data).toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * With the weighted MSU, the tree given a bag where every instance drawn
+     * appears once, weighted by its number of copies, is the tree given the
+     * bag with the copies. Both share the store of the whole data, as in a
+     * forest, and every attribute is a candidate, so the trees do not depend
+     * on their random number generators, which are seeded from the bags.
+     */
+    @Test
+    public void testWeightedBagMatchesExpandedBag() throws Exception {
+        Instances data = MSUTestData.synthetic(400, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data);
+        Random random = new Random(2);
+        int[] counts = new int[data.numInstances()];
+        // Skewed towards the first rows, so that the copies change the splits
+        for (int k = 0; k < counts.length; k++) {
+            counts[(int) (counts.length * Math.pow(random.nextDouble(), 3))]++;
+        }
+
+        Instances compact = new Instances(data, 0);
+        Instances expanded = new Instances(data, 0);
+        int[] compactRows = new int[counts.length];
+        int[] expandedRows = new int[counts.length];
+        for (int row = 0; row < counts.length; row++) {
+            if (counts[row] > 0) {
+                compactRows[compact.numInstances()] = row;
+                compact.add(data.instance(row));
+                compact.lastInstance().setWeight(counts[row]);
+            }
+            for (int k = 0; k < counts[row]; k++) {
+                expandedRows[expanded.numInstances()] = row;
+                expanded.add(data.instance(row));
+            }
+        }
+
+        RandomTreeMSU weightedTree = new RandomTreeMSU();
+        weightedTree.setOptions(Utils.splitOptions("-K 100 -weighted-msu -discretize-once"));
+        weightedTree.setSharedStore(store, Arrays.copyOf(compactRows, compact.numInstances()));
+        weightedTree.buildClassifier(compact);
+        RandomTreeMSU expandedTree = new RandomTreeMSU();
+        expandedTree.setOptions(Utils.splitOptions("-K 100 -discretize-once"));
+        expandedTree.setSharedStore(store, expandedRows);
+        expandedTree.buildClassifier(expanded);
+
+        assertEquals(expandedTree.toString(), weightedTree.toString());
+    }
+
+    /**
+     * The MSU is only estimated on a sample at the nodes with more instances
+     * than the sample: a sample as large as the data gives the exact tree,
+     * and smaller nodes still split on the attribute of highest exact MSU.
+     */
+    @Test
+    public void testMsuSampleSizeKeepsSmallNodesExact() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data, true);
+        int[] rows = new int[data.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+
+        for (String options : new String[]{"", "-discretize-once"}) {
+            assertEquals("Options \"" + options + "\"", build(options, data).toString(),
+                    build(options + " -msu-sample-size 600", data).toString());
+        }
+
+        String options = "-K 100 -depth 10 -discretize-once -msu-sample-size 150";
+        checkSplits(options, build(options, data).m_Tree, data, store, rows, new int[0], 0, 150);
+    }
+
+    /**
+     * When every attribute is a candidate, the tree does not depend on the
+     * order the candidates are drawn in, so growing it level by level gives
+     * the same tree as growing it depth first.
+     */
+    @Test
+    public void testLevelWiseMatchesDepthFirst() throws Exception {
+        Instances data = MSUTestData.synthetic(600, 1);
+
+        for (String options : new String[]{"-K 100 -depth 10", "-K 100 -depth 10 -discretize-once",
+                "-K 100 -depth 10 -discretize-once -node-parallel-threshold 50"}) {
+            assertEquals("Options \"" + options + "\"", build(options, data).toString(),
+                    build(options + " -level-wise", data).toString());
+        }
+    }
+
+    /**
+     * A thread keeps its node buffers from tree to tree, and replaces them
+     * when a tree has more columns: trees of alternating widths built by a
+     * single thread are those built by fresh threads.
+     */
+    @Test
+    public void testBuffersFollowTheWidthOfTheTrees() throws Exception {
+        final Instances narrow = MSUTestData.synthetic(300, 1);
+        final Instances wide = withTies(narrow);
+
+        for (final String options : new String[]{"", "-discretize-once", "-discretize-once -level-wise"}) {
+            ExecutorService thread = Executors.newSingleThreadExecutor();
+            try {
+                List<String> trees = thread.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        List<String> result = new ArrayList<String>();
+                        for (Instances data : new Instances[]{narrow, wide, narrow, wide}) {
+                            result.add(build(options, data).toString());
+                        }
+                        return result;
+                    }
+                }).get();
+                assertEquals("Options \"" + options + "\"", Arrays.asList(buildInPool(options, narrow).toString(),
+                        buildInPool(options, wide).toString(), buildInPool(options, narrow).toString(),
+                        buildInPool(options, wide).toString()), trees);
+            } finally {
+                thread.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A tree built from the counts of a bag goes through the setup of
+     * RandomTree.buildClassifier(): after a ZeroR model for data with only
+     * the class, it is the tree built from the counts by a new classifier.
+     * With backfitting, the tree grown over the store is backfitted.
+     */
+    @Test
+    public void testBuildsGoThroughRandomTreeSetup() throws Exception {
+        Instances data = MSUTestData.synthetic(300, 1);
+        MSUColumnStore store = MSUColumnStore.newInstance(data, true);
+        int[] counts = new int[data.numInstances()];
+        Random random = new Random(4);
+        for (int k = 0; k < counts.length; k++) {
+            counts[random.nextInt(counts.length)]++;
+        }
+        Instances classOnly = new Instances(data);
+        for (int att = classOnly.numAttributes() - 1; att >= 0; att--) {
+            if (att != classOnly.classIndex()) {
+                classOnly.deleteAttributeAt(att);
+            }
+        }
+
+        RandomTreeMSU expected = new RandomTreeMSU();
+        expected.buildClassifier(data, store, counts);
+        RandomTreeMSU tree = new RandomTreeMSU();
+        tree.buildClassifier(classOnly);
+        tree.buildClassifier(data, store, counts);
+        assertEquals(expected.toString(), tree.toString());
+        for (Instance instance : data) {
+            assertArrayEquals(expected.distributionForInstance(instance), tree.distributionForInstance(instance), 0);
+        }
+
+        RandomTreeMSU backfitted = build("-N 3", data);
+        assertTrue(backfitted.m_Tree instanceof RandomTreeMSU.Tree);
+        for (Instance instance : data) {
+            assertEquals(1, Utils.sum(backfitted.distributionForInstance(instance)), 1e-9);
+        }
+    }
+
+    /**
+     * Splitting on the bins of the node would give the trees of the exact
+     * search, so it is only allowed over the data discretized once.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSplitOnBinsNeedsDiscretizeOnce() throws Exception {
+        build("-split-on-bins", MSUTestData.synthetic(100, 1));
+    }
+}